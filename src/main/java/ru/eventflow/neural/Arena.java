@@ -0,0 +1,111 @@
+package ru.eventflow.neural;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A thread-confined pool of backing arrays for batches.
+ * <p>
+ * While an arena is entered, every batch created by the thread takes its array from the arena, reusing an array
+ * of the same length released earlier. Closing the arena releases all arrays handed out since it was entered,
+ * so nothing allocated inside may be used after that. Unrolled graphs of the same shapes are built over and over,
+ * thus after the first pass almost no garbage is produced.
+ * <pre>
+ * try (Arena arena = Arena.enter()) {
+ *     // forward and backward passes
+ * }
+ * </pre>
+ * Batches which outlive the pass (e.g. accumulated gradients) must be created through {@link #outside(Supplier)}.
+ */
+public final class Arena implements AutoCloseable {
+
+    private static final ThreadLocal<Arena> ARENAS = ThreadLocal.withInitial(Arena::new);
+
+    private final Map<Integer, ArrayDeque<double[]>> freeDoubles = new HashMap<>();
+    private final Map<Integer, ArrayDeque<float[]>> freeFloats = new HashMap<>();
+    private final List<double[]> usedDoubles = new ArrayList<>();
+    private final List<float[]> usedFloats = new ArrayList<>();
+    private boolean active;
+
+    private Arena() {
+    }
+
+    /**
+     * activates the arena of the current thread
+     */
+    public static Arena enter() {
+        Arena arena = ARENAS.get();
+        if (arena.active) {
+            throw new IllegalStateException("The arena is already entered");
+        }
+        arena.active = true;
+        return arena;
+    }
+
+    /**
+     * runs the supplier with the arena of the current thread (if any) switched off
+     */
+    public static <T> T outside(Supplier<T> supplier) {
+        Arena arena = ARENAS.get();
+        boolean active = arena.active;
+        arena.active = false;
+        try {
+            return supplier.get();
+        } finally {
+            arena.active = active;
+        }
+    }
+
+    static double[] doubles(int length) {
+        Arena arena = ARENAS.get();
+        if (!arena.active) {
+            return new double[length];
+        }
+        ArrayDeque<double[]> free = arena.freeDoubles.get(length);
+        double[] array = free == null ? null : free.poll();
+        if (array == null) {
+            array = new double[length];
+        } else {
+            Arrays.fill(array, 0d);
+        }
+        arena.usedDoubles.add(array);
+        return array;
+    }
+
+    static float[] floats(int length) {
+        Arena arena = ARENAS.get();
+        if (!arena.active) {
+            return new float[length];
+        }
+        ArrayDeque<float[]> free = arena.freeFloats.get(length);
+        float[] array = free == null ? null : free.poll();
+        if (array == null) {
+            array = new float[length];
+        } else {
+            Arrays.fill(array, 0f);
+        }
+        arena.usedFloats.add(array);
+        return array;
+    }
+
+    /**
+     * releases everything handed out since the arena was entered and deactivates it
+     */
+    @Override
+    public void close() {
+        for (double[] array : usedDoubles) {
+            freeDoubles.computeIfAbsent(array.length, length -> new ArrayDeque<>()).push(array);
+        }
+        for (float[] array : usedFloats) {
+            freeFloats.computeIfAbsent(array.length, length -> new ArrayDeque<>()).push(array);
+        }
+        usedDoubles.clear();
+        usedFloats.clear();
+        active = false;
+    }
+}
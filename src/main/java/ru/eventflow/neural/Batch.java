@@ -1,38 +1,73 @@
 package ru.eventflow.neural;
 
 import Jama.Matrix;
+import ru.eventflow.neural.kernels.ElementWiseKernels;
+import ru.eventflow.neural.kernels.Gemm;
+import ru.eventflow.neural.kernels.Kernels;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * All shapes are 3d. Column vectors, thus the usual order of matrices in the product.
+ * <p>
+ * Elements are kept in a single contiguous row-major array, slice after slice, so that the element [i, j, k]
+ * lives at {@code i * sliceStride + j * rowStride + k}. Hot loops should use the primitive accessors
+ * ({@link #get(int, int, int)}, {@link #getFlat(int)}) or the backing array itself instead of {@code int[]} indices.
+ * <p>
+ * The backing array is either {@code double[]} or {@code float[]}, s. {@link Precision}. Unless given explicitly,
+ * the precision of a new batch is the current precision of the thread, results of operations keep the precision
+ * of the left operand. An operand of another precision is converted into a temporary copy, i.e. an allocation
+ * per call, even by the in-place operations; {@link #timesInto} refuses mixed precisions instead, so that callers
+ * relying on it not to allocate find out.
+ * <p>
+ * Backing arrays come from the {@link Arena} of the thread, if one is entered.
  */
 public class Batch implements Serializable {
 
-    private int size;
-    private int rows;
-    private int columns;
-    private Matrix[] values;
+    private static final long serialVersionUID = 2L; // s. PersistenceUtils#FORMAT
+    private static final ElementWiseKernels KERNELS = Kernels.elementWise();
 
-    public Batch(int[] shape) {
-        this.size = shape[0];
-        this.rows = shape[1];
-        this.columns = shape[2];
-        this.values = new Matrix[size];
+    private final int size;
+    private final int rows;
+    private final int columns;
+    private final int sliceStride;
+    private final int rowStride;
+    private final Precision precision;
+    private final double[] data; // null in single precision
+    private final float[] floatData; // null in double precision
 
-        // TODO externalize initializer
-        for (int i = 0; i < size; i++) {
-            values[i] = new Matrix(rows, columns);
-        }
+    public Batch(int[] shape) {
+        this(shape[0], shape[1], shape[2]);
     }
 
     public Batch(int size, int rows, int columns) {
-        this(new int[]{size, rows, columns});
+        this(size, rows, columns, Precision.current());
+    }
+
+    public Batch(int[] shape, Precision precision) {
+        this(shape[0], shape[1], shape[2], precision);
+    }
+
+    public Batch(int size, int rows, int columns, Precision precision) {
+        this.size = size;
+        this.rows = rows;
+        this.columns = columns;
+        this.rowStride = columns;
+        this.sliceStride = rows * columns;
+        this.precision = precision;
+        if (precision == Precision.FLOAT) {
+            this.data = null;
+            this.floatData = Arena.floats(size * sliceStride);
+        } else {
+            this.data = Arena.doubles(size * sliceStride);
+            this.floatData = null;
+        }
     }
 
     public static Batch scalar(double value) {
-        Batch result = new Batch(new int[]{1, 1, 1});
-        result.put(new int[]{0, 0, 0}, value);
+        Batch result = new Batch(1, 1, 1);
+        result.putFlat(0, value);
         return result;
     }
 
@@ -60,71 +95,101 @@ public class Batch implements Serializable {
     }
 
     public static Batch ones(int[] shape) {
-        Batch batch = new Batch(shape);
-        Matrix m = new Matrix(batch.rows, batch.columns);
-        for (int j = 0; j < batch.rows; j++) {
-            for (int k = 0; k < batch.columns; k++) {
-                m.set(j, k, 1.0);
-            }
-        }
-        for (int i = 0; i < batch.size; i++) {
-            batch.put(i, m.copy());
-        }
-        return batch;
+        return ones(shape, Precision.current());
+    }
+
+    public static Batch ones(int[] shape, Precision precision) {
+        return new Batch(shape, precision).fill(1.0);
     }
 
     public static Batch rand(int[] shape) {
-        Batch batch = new Batch(shape);
-        for (int i = 0; i < shape[0]; i++) {
-            batch.put(i, Matrix.random(shape[1], shape[2]));
+        return rand(shape, Precision.current());
+    }
+
+    public static Batch rand(int[] shape, Precision precision) {
+        Batch batch = new Batch(shape, precision);
+        for (int n = 0; n < batch.length(); n++) {
+            batch.putFlat(n, Math.random());
         }
         return batch;
     }
 
+    /**
+     * identity matrices (ones on the main diagonal, non-square shapes allowed)
+     */
     public static Batch eye(int[] shape) {
         Batch batch = new Batch(shape);
+        int diagonal = Math.min(batch.rows, batch.columns);
         for (int i = 0; i < batch.size; i++) {
-            batch.put(i, Matrix.identity(batch.rows, batch.columns));
+            for (int j = 0; j < diagonal; j++) {
+                batch.put(i, j, j, 1.0);
+            }
         }
         return batch;
     }
 
     public static Batch uniformDistributionVector(int vectorSize) {
-        Batch batch = new Batch(new int[]{1, vectorSize, 1});
-        double[] elements = new double[vectorSize];
-        for (int i = 0; i < vectorSize; i++) {
-            elements[i] = 1d / vectorSize;
-        }
-        batch.put(0, new Matrix(elements, vectorSize));
-        return batch;
+        return new Batch(1, vectorSize, 1).fill(1d / vectorSize);
     }
 
     /**
      * Xavier initialization
      */
     public static Batch xavier(int[] shape) {
-        Batch batch = new Batch(shape);
+        return xavier(shape, Precision.current());
+    }
+
+    public static Batch xavier(int[] shape, Precision precision) {
+        Batch batch = new Batch(shape, precision);
         double factor = Math.sqrt(6) / Math.sqrt(batch.rows + batch.columns);
-        for (int i = 0; i < batch.size; i++) {
-            Matrix m = new Matrix(batch.rows, batch.columns);
-            for (int j = 0; j < batch.rows; j++) {
-                for (int k = 0; k < batch.columns; k++) {
-                    m.set(j, k, 2 * Math.random() * factor - factor);
-                }
-            }
-            batch.put(i, m);
+        for (int n = 0; n < batch.length(); n++) {
+            batch.putFlat(n, 2 * Math.random() * factor - factor);
         }
         return batch;
     }
 
+    /**
+     * like {@link System#arraycopy(Object, int, Object, int, int)}, converts between precisions if necessary
+     */
+    public static void arraycopy(Batch src, int srcPos, Batch dest, int destPos, int length) {
+        if (src.precision != dest.precision) {
+            for (int n = 0; n < length; n++) {
+                dest.putFlat(destPos + n, src.getFlat(srcPos + n));
+            }
+        } else if (src.floatData != null) {
+            System.arraycopy(src.floatData, srcPos, dest.floatData, destPos, length);
+        } else {
+            System.arraycopy(src.data, srcPos, dest.data, destPos, length);
+        }
+    }
+
     public double getDouble(int[] index) {
-        return values[index[0]].get(index[1], index[2]);
+        return get(index[0], index[1], index[2]);
     }
 
     public int[] shape() {
         return new int[]{size, rows, columns};
     }
 
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * this batch if the precision is the same, otherwise a converted copy
+     */
+    public Batch toPrecision(Precision precision) {
+        if (this.precision == precision) {
+            return this;
+        }
+        Batch result = new Batch(size, rows, columns, precision);
+        arraycopy(this, 0, result, 0, length());
+        return result;
+    }
+
+    /**
+     * copies the matrix into the i-th slice
+     */
     public void put(int i, Matrix matrix) {
         if (i < 0 || i > size - 1) {
             throw new IllegalArgumentException("Invalid position");
@@ -132,96 +197,481 @@ public class Batch implements Serializable {
         if (matrix.getRowDimension() != rows || matrix.getColumnDimension() != columns) {
             throw new IllegalArgumentException("Shape mismatch");
         }
-        values[i] = matrix;
+        double[][] array = matrix.getArray();
+        int offset = offset(i);
+        for (int j = 0; j < rows; j++) {
+            if (data != null) {
+                System.arraycopy(array[j], 0, data, offset + j * rowStride, columns);
+            } else {
+                for (int k = 0; k < columns; k++) {
+                    floatData[offset + j * rowStride + k] = (float) array[j][k];
+                }
+            }
+        }
     }
 
+    /**
+     * a copy of the i-th slice, changes to the matrix are not reflected in the batch
+     */
     public Matrix get(int i) {
-        return values[i];
+        double[][] array = new double[rows][columns];
+        int offset = offset(i);
+        for (int j = 0; j < rows; j++) {
+            if (data != null) {
+                System.arraycopy(data, offset + j * rowStride, array[j], 0, columns);
+            } else {
+                for (int k = 0; k < columns; k++) {
+                    array[j][k] = floatData[offset + j * rowStride + k];
+                }
+            }
+        }
+        return new Matrix(array, rows, columns);
     }
 
     public void set(int[] index, double value) {
-        get(index[0]).set(index[1], index[2], value);
+        put(index[0], index[1], index[2], value);
+    }
+
+    public double get(int i, int j, int k) {
+        return getFlat(i * sliceStride + j * rowStride + k);
+    }
+
+    public void put(int i, int j, int k, double value) {
+        putFlat(i * sliceStride + j * rowStride + k, value);
+    }
+
+    public double getFlat(int n) {
+        return data != null ? data[n] : floatData[n];
+    }
+
+    public void putFlat(int n, double value) {
+        if (data != null) {
+            data[n] = value;
+        } else {
+            floatData[n] = (float) value;
+        }
+    }
+
+    /**
+     * position of the first element of the i-th slice in the backing array
+     */
+    public int offset(int i) {
+        return i * sliceStride;
+    }
+
+    /**
+     * total number of elements
+     */
+    public int length() {
+        return size * sliceStride;
+    }
+
+    public int getSliceStride() {
+        return sliceStride;
+    }
+
+    public int getRowStride() {
+        return rowStride;
+    }
+
+    /**
+     * the backing array of a double precision batch, not a copy
+     */
+    public double[] getData() {
+        if (data == null) {
+            throw new IllegalStateException("Single precision batch");
+        }
+        return data;
+    }
+
+    /**
+     * the backing array of a single precision batch, not a copy
+     */
+    public float[] getFloatData() {
+        if (floatData == null) {
+            throw new IllegalStateException("Double precision batch");
+        }
+        return floatData;
     }
 
     public Batch plus(Batch other) {
-        if (size != other.size) {
+        checkShape(other);
+        return copy().addInPlace(other);
+    }
+
+    public Batch times(Batch other) {
+        if (columns != other.rows) {
             throw new IllegalArgumentException("Shape mismatch");
         }
-        Batch result = new Batch(size, rows, other.columns);
-        for (int i = 0; i < size; i++) {
-            try {
-                result.put(i, get(i).plus(other.get(i)));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        Batch result = new Batch(broadcastSize(other), rows, other.columns, precision);
+        gemm(false, false, rows, other.columns, columns, other, result, false);
         return result;
     }
 
-    public Batch times(Batch other) {
-        if (size != other.size || columns != other.rows) {
+    /**
+     * this^T x other, without materializing the transpose
+     */
+    public Batch transposeTimes(Batch other) {
+        if (rows != other.rows) {
             throw new IllegalArgumentException("Shape mismatch");
         }
-        Batch result = new Batch(size, rows, other.columns);
-        for (int i = 0; i < size; i++) {
-            result.put(i, get(i).times(other.get(i)));
+        Batch result = new Batch(broadcastSize(other), columns, other.columns, precision);
+        gemm(true, false, columns, other.columns, rows, other, result, false);
+        return result;
+    }
+
+    /**
+     * this x other^T, without materializing the transpose
+     */
+    public Batch timesTranspose(Batch other) {
+        if (columns != other.columns) {
+            throw new IllegalArgumentException("Shape mismatch");
         }
+        Batch result = new Batch(broadcastSize(other), rows, other.rows, precision);
+        gemm(false, true, rows, other.rows, columns, other, result, false);
         return result;
     }
 
-    public Batch times(double number) {
-        Batch result = new Batch(size, rows, columns);
-        for (int i = 0; i < size; i++) {
-            result.put(i, get(i).times(number));
+    /**
+     * result (+)= op(this) x op(other) for each slice, op being the transpose if requested, returns the result
+     * <p>
+     * An operand of a single slice is shared by all slices of the other one, e.g. a weight matrix times a minibatch
+     * of vectors, and a result of a single slice receives the sum of the products over the slices, e.g. the gradient
+     * of the weight matrix. Both cases with column vectors are done by one matrix-matrix product over the minibatch.
+     *
+     * @param accumulate -- add to the result instead of overwriting it
+     * @throws IllegalArgumentException -- unless both operands and the result have the same precision,
+     *                                  s. {@link #toPrecision(Precision)}
+     */
+    public Batch timesInto(boolean transposeThis, Batch other, boolean transposeOther, Batch result, boolean accumulate) {
+        int m = transposeThis ? columns : rows;
+        int k = transposeThis ? rows : columns;
+        int n = transposeOther ? other.rows : other.columns;
+        int slices = broadcastSize(other);
+        if (k != (transposeOther ? other.columns : other.rows) || (result.size != slices && result.size != 1)
+                || result.rows != m || result.columns != n) {
+            throw new IllegalArgumentException("Shape mismatch");
         }
+        if (other.precision != precision || result.precision != precision) {
+            throw new IllegalArgumentException("Precision mismatch: " + precision + " x " + other.precision
+                    + " into " + result.precision);
+        }
+        gemm(transposeThis, transposeOther, m, n, k, other, result, accumulate);
         return result;
     }
 
+    /**
+     * @return the number of slices of a product with the other batch, a single slice is broadcast
+     */
+    private int broadcastSize(Batch other) {
+        if (size != other.size && size != 1 && other.size != 1) {
+            throw new IllegalArgumentException("Shape mismatch");
+        }
+        return Math.max(size, other.size);
+    }
+
+    private void gemm(boolean transA, boolean transB, int m, int n, int k, Batch other, Batch result, boolean accumulate) {
+        other = other.toPrecision(precision); // the allocating products only, timesInto requires the same precision
+        int slices = Math.max(size, other.size);
+        if (size == 1 && slices > 1 && other.columns == 1 && !transB && result.size == slices) {
+            // the vectors are the rows of a single matrix X, and the results are the rows of X op(this)^T
+            gemm(false, !transA, slices, m, k, other, 0, this, 0, result, 0, accumulate);
+        } else if (size == slices && other.size == slices && slices > 1 && result.size == 1
+                && columns == 1 && !transA && other.columns == 1 && transB) {
+            // the sum of the outer products of the rows of two matrices G and X is G^T X
+            gemm(true, false, m, n, slices, this, 0, other, 0, result, 0, accumulate);
+        } else {
+            for (int i = 0; i < slices; i++) {
+                gemm(transA, transB, m, n, k,
+                        this, size == 1 ? 0 : offset(i),
+                        other, other.size == 1 ? 0 : other.offset(i),
+                        result, result.size == 1 ? 0 : result.offset(i),
+                        accumulate || (result.size == 1 && i > 0));
+            }
+        }
+    }
+
+    private static void gemm(boolean transA, boolean transB, int m, int n, int k, Batch a, int aOffset,
+                             Batch b, int bOffset, Batch c, int cOffset, boolean accumulate) {
+        if (a.data != null) {
+            Gemm.gemm(transA, transB, m, n, k, a.data, aOffset, b.data, bOffset, c.data, cOffset, accumulate);
+        } else {
+            Gemm.gemm(transA, transB, m, n, k, a.floatData, aOffset, b.floatData, bOffset, c.floatData, cOffset, accumulate);
+        }
+    }
+
+    public Batch times(double number) {
+        return copy().scaleInPlace(number);
+    }
+
     /**
      * element-wise multiplication, shapes must coincide
      */
     public Batch mul(Batch other) {
-        Batch result = new Batch(size, rows, columns);
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < rows; j++) {
-                for (int k = 0; k < columns; k++) {
-                    int[] index = new int[]{i, j, k};
-                    result.put(index, get(index) * other.get(index));
+        checkShape(other);
+        return copy().mulInPlace(other);
+    }
+
+    /**
+     * gradient clipping applied to each vector separately
+     */
+    public Batch clip(double threshold) {
+        return copy().clipInPlace(threshold);
+    }
+
+    /**
+     * this += other, returns this
+     * <p>
+     * A single slice is added to every slice of this batch, e.g. a bias to a minibatch, and every slice is added
+     * to a single slice, e.g. the gradient of a bias.
+     */
+    public Batch addInPlace(Batch other) {
+        if (size != other.size && (size == 1 || other.size == 1) && rows == other.rows && columns == other.columns) {
+            other = other.toPrecision(precision);
+            for (int i = 0; i < Math.max(size, other.size); i++) {
+                int to = size == 1 ? 0 : offset(i);
+                int from = other.size == 1 ? 0 : other.offset(i);
+                for (int j = 0; j < sliceStride; j++) {
+                    putFlat(to + j, getFlat(to + j) + other.getFlat(from + j));
                 }
             }
+            return this;
         }
-        return result;
+        checkShape(other);
+        other = other.toPrecision(precision);
+        if (data != null) {
+            KERNELS.add(data, other.data, data, data.length);
+        } else {
+            KERNELS.add(floatData, other.floatData, floatData, floatData.length);
+        }
+        return this;
     }
 
     /**
-     * gradient clipping applied to each vector separately
+     * this += alpha * x, returns this, x is converted if its precision differs (an allocation)
      */
-    public Batch clip(double threshold) {
-        Batch result = new Batch(size, rows, columns);
+    public Batch axpy(double alpha, Batch x) {
+        checkShape(x);
+        x = x.toPrecision(precision);
+        if (data != null) {
+            KERNELS.axpy(alpha, x.data, data, data.length);
+        } else {
+            KERNELS.axpy((float) alpha, x.floatData, floatData, floatData.length);
+        }
+        return this;
+    }
+
+    /**
+     * this *= factor, returns this
+     */
+    public Batch scaleInPlace(double factor) {
+        if (data != null) {
+            KERNELS.scale(factor, data, data, data.length);
+        } else {
+            KERNELS.scale((float) factor, floatData, floatData, floatData.length);
+        }
+        return this;
+    }
+
+    /**
+     * element-wise this *= other, returns this
+     */
+    public Batch mulInPlace(Batch other) {
+        checkShape(other);
+        other = other.toPrecision(precision);
+        if (data != null) {
+            KERNELS.mul(data, other.data, data, data.length);
+        } else {
+            KERNELS.mul(floatData, other.floatData, floatData, floatData.length);
+        }
+        return this;
+    }
+
+    /**
+     * overwrites the destination with the values of this batch, returns the destination
+     */
+    public Batch copyInto(Batch dest) {
+        checkShape(dest);
+        arraycopy(this, 0, dest, 0, length());
+        return dest;
+    }
+
+    /**
+     * sets every element to the value, returns this
+     */
+    public Batch fill(double value) {
+        if (data != null) {
+            Arrays.fill(data, value);
+        } else {
+            Arrays.fill(floatData, (float) value);
+        }
+        return this;
+    }
+
+    /**
+     * in-place version of {@link #clip(double)}, returns this
+     */
+    public Batch clipInPlace(double threshold) {
         for (int i = 0; i < size; i++) {
-            for (int j = 0; j < columns; j++) {
-                Matrix vector = get(i).getMatrix(0, rows - 1, j, j);
-                double norm = vector.norm2();
+            int offset = offset(i);
+            for (int k = 0; k < columns; k++) {
+                double sum = 0;
+                for (int j = 0; j < rows; j++) {
+                    double v = getFlat(offset + j * rowStride + k);
+                    sum += v * v;
+                }
+                double norm = Math.sqrt(sum);
                 if (norm >= threshold) {
-                    result.get(i).setMatrix(0, rows - 1, j, j, vector.times(threshold / norm));
-                } else {
-                    result.get(i).setMatrix(0, rows - 1, j, j, vector);
+                    double factor = threshold / norm;
+                    for (int j = 0; j < rows; j++) {
+                        int n = offset + j * rowStride + k;
+                        putFlat(n, getFlat(n) * factor);
+                    }
                 }
             }
         }
+        return this;
+    }
+
+    public Batch sigmoid() {
+        return sigmoidInto(new Batch(size, rows, columns, precision));
+    }
+
+    /**
+     * writes the result into a batch of the same shape and precision (may be this one), returns it,
+     * as do the other element-wise *Into methods
+     */
+    public Batch sigmoidInto(Batch result) {
+        checkResult(result);
+        if (data != null) {
+            KERNELS.sigmoid(data, result.data, data.length);
+        } else {
+            KERNELS.sigmoid(floatData, result.floatData, floatData.length);
+        }
+        return result;
+    }
+
+    /**
+     * element-wise derivative of the sigmoid, this being the output of the sigmoid
+     */
+    public Batch sigmoidDerivative() {
+        return sigmoidDerivativeInto(new Batch(size, rows, columns, precision));
+    }
+
+    public Batch sigmoidDerivativeInto(Batch result) {
+        checkResult(result);
+        if (data != null) {
+            KERNELS.sigmoidDerivative(data, result.data, data.length);
+        } else {
+            KERNELS.sigmoidDerivative(floatData, result.floatData, floatData.length);
+        }
+        return result;
+    }
+
+    public Batch tanh() {
+        return tanhInto(new Batch(size, rows, columns, precision));
+    }
+
+    public Batch tanhInto(Batch result) {
+        checkResult(result);
+        if (data != null) {
+            KERNELS.tanh(data, result.data, data.length);
+        } else {
+            KERNELS.tanh(floatData, result.floatData, floatData.length);
+        }
+        return result;
+    }
+
+    /**
+     * element-wise derivative of the tanh, this being the output of the tanh
+     */
+    public Batch tanhDerivative() {
+        return tanhDerivativeInto(new Batch(size, rows, columns, precision));
+    }
+
+    public Batch tanhDerivativeInto(Batch result) {
+        checkResult(result);
+        if (data != null) {
+            KERNELS.tanhDerivative(data, result.data, data.length);
+        } else {
+            KERNELS.tanhDerivative(floatData, result.floatData, floatData.length);
+        }
+        return result;
+    }
+
+    public Batch relu() {
+        return reluInto(new Batch(size, rows, columns, precision));
+    }
+
+    public Batch reluInto(Batch result) {
+        checkResult(result);
+        if (data != null) {
+            KERNELS.relu(data, result.data, data.length);
+        } else {
+            KERNELS.relu(floatData, result.floatData, floatData.length);
+        }
+        return result;
+    }
+
+    /**
+     * element-wise derivative of the relu, this being the input of the relu
+     */
+    public Batch reluDerivative() {
+        return reluDerivativeInto(new Batch(size, rows, columns, precision));
+    }
+
+    public Batch reluDerivativeInto(Batch result) {
+        checkResult(result);
+        if (data != null) {
+            KERNELS.reluDerivative(data, result.data, data.length);
+        } else {
+            KERNELS.reluDerivative(floatData, result.floatData, floatData.length);
+        }
+        return result;
+    }
+
+    public Batch exp() {
+        return expInto(new Batch(size, rows, columns, precision));
+    }
+
+    public Batch expInto(Batch result) {
+        checkResult(result);
+        if (data != null) {
+            KERNELS.exp(data, result.data, data.length);
+        } else {
+            KERNELS.exp(floatData, result.floatData, floatData.length);
+        }
         return result;
     }
 
+    private void checkResult(Batch result) {
+        checkShape(result);
+        if (result.precision != precision) {
+            throw new IllegalArgumentException("Precision mismatch");
+        }
+    }
+
+    private void checkShape(Batch other) {
+        if (size != other.size || rows != other.rows || columns != other.columns) {
+            throw new IllegalArgumentException("Shape mismatch");
+        }
+    }
+
     public Batch transpose() {
-        Batch result = new Batch(size, columns, rows);
+        Batch result = new Batch(size, columns, rows, precision);
         for (int i = 0; i < size; i++) {
-            result.put(i, get(i).transpose());
+            int offset = offset(i);
+            for (int j = 0; j < rows; j++) {
+                for (int k = 0; k < columns; k++) {
+                    result.putFlat(offset + k * rows + j, getFlat(offset + j * rowStride + k));
+                }
+            }
         }
         return result;
     }
 
     public Batch inverse() {
-        Batch result = new Batch(size, rows, columns);
+        Batch result = new Batch(size, rows, columns, precision);
         for (int i = 0; i < size; i++) {
             result.put(i, get(i).inverse());
         }
@@ -229,11 +679,11 @@ public class Batch implements Serializable {
     }
 
     public void put(int[] index, double value) {
-        values[index[0]].set(index[1], index[2], value);
+        put(index[0], index[1], index[2], value);
     }
 
     public double get(int[] index) {
-        return values[index[0]].get(index[1], index[2]);
+        return get(index[0], index[1], index[2]);
     }
 
     public void print() {
@@ -243,7 +693,7 @@ public class Batch implements Serializable {
     public void print(String message) {
         System.out.println(message + " [" + size + ", " + rows + ", " + columns + "]");
         for (int i = 0; i < size; i++) {
-            values[i].print(4, 6); // formatting
+            get(i).print(4, 6); // formatting
         }
     }
 
@@ -260,10 +710,8 @@ public class Batch implements Serializable {
     }
 
     public Batch copy() {
-        Batch copy = new Batch(shape());
-        for (int i = 0; i < size; i++) {
-            copy.put(i, get(i).copy());
-        }
+        Batch copy = new Batch(size, rows, columns, precision);
+        arraycopy(this, 0, copy, 0, length());
         return copy;
     }
 
@@ -10,18 +10,35 @@ import java.io.OutputStream;
 
 /**
  * s. https://github.com/RuedigerMoeller/fast-serialization/wiki/Serialization
+ * <p>
+ * FST writes fields by the layout of the class, not by name, so a snapshot can only be read with the layout it
+ * was written with. Snapshots start with the version of the layout, s. {@link #FORMAT}.
  */
 public class PersistenceUtils {
 
+    /**
+     * 2: Batch backed by a single double[] or float[] and its precision. Snapshots of the earlier layout of a Jama
+     * Matrix per slice carry no version and cannot be restored, they have to be retrained.
+     */
+    static final int FORMAT = 0x45440002;
+
     public static Parameters read(InputStream stream) throws IOException, ClassNotFoundException {
         FSTObjectInput in = new FSTObjectInput(stream);
-        Parameters result = (Parameters) in.readObject();
-        in.close(); // required !
-        return result;
+        try {
+            int format = in.readInt();
+            if (format != FORMAT) {
+                throw new IOException("Unsupported snapshot format " + Integer.toHexString(format) + ", expected "
+                        + Integer.toHexString(FORMAT) + " (snapshots of Jama-backed batches cannot be restored)");
+            }
+            return (Parameters) in.readObject();
+        } finally {
+            in.close(); // required !
+        }
     }
 
     public static void write(OutputStream stream, Parameters object) throws IOException {
         FSTObjectOutput out = new FSTObjectOutput(stream);
+        out.writeInt(FORMAT);
         out.writeObject(object);
         out.close(); // required !
     }
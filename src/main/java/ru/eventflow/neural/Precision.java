@@ -0,0 +1,27 @@
+package ru.eventflow.neural;
+
+/**
+ * Storage and compute precision of batches.
+ * <p>
+ * Every thread has a current precision, which is used for batches created without an explicit one
+ * (intermediate values, partials and duals of a graph). The engine sets it for the threads evaluating its graphs.
+ */
+public enum Precision {
+
+    DOUBLE, FLOAT;
+
+    private static final ThreadLocal<Precision> CURRENT = ThreadLocal.withInitial(() -> DOUBLE);
+
+    public static Precision current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the previous precision of the thread, to be restored afterwards
+     */
+    public static Precision set(Precision precision) {
+        Precision previous = CURRENT.get();
+        CURRENT.set(precision);
+        return previous;
+    }
+}
@@ -21,6 +21,13 @@ public class TrainRunner {
         options.addOption("e", "embedding", true, "embedding (input) vector size, don't confuse with one-hot vector size");
         options.addOption("t", "threads", true, "number of threads");
         options.addOption("c", "clipping", true, "gradient clipping threshold");
+        options.addOption("p", "precision", true, "float or double (default)");
+        options.addOption("f", "fused", false, "fused LSTM cells with stacked gate weights");
+        options.addOption("x", "projection", false, "input projections of the encoder for all timesteps in one product");
+        options.addOption("b", "graph-batch", true, "examples evaluated by one padded graph, separate cells only (default 1)");
+        options.addOption("a", "async", false, "lock-free asynchronous updates of every graph, no barrier per minibatch");
+        options.addOption("l", "level-parallel", true, "compute independent graph nodes of at least this work (multiplications) concurrently (default 0 is off)");
+        options.addOption("k", "checkpoint", true, "keep every k-th encoder cell and recompute the rest on backward (default 0 keeps all)");
 
         try {
             CommandLine line = parser.parse(options, args);
@@ -43,7 +50,15 @@ public class TrainRunner {
                 int numThreads = Integer.parseInt(line.getOptionValue("threads"));
                 double learningRate = Double.parseDouble(line.getOptionValue("learning"));
                 double clipping = Double.parseDouble(line.getOptionValue("clipping"));
-                run(learningRate, input, embeddingSize, hiddenSize, numThreads, clipping, snapshots);
+                Precision precision = Precision.valueOf(line.getOptionValue("precision", "double").toUpperCase());
+                int checkpointInterval = Integer.parseInt(line.getOptionValue("checkpoint", "0"));
+                boolean fused = line.hasOption("fused");
+                boolean projection = line.hasOption("projection");
+                int graphBatchSize = Integer.parseInt(line.getOptionValue("graph-batch", "1"));
+                boolean async = line.hasOption("async");
+                long parallelThreshold = Long.parseLong(line.getOptionValue("level-parallel", "0"));
+                run(learningRate, input, embeddingSize, hiddenSize, numThreads, clipping, precision, checkpointInterval,
+                        fused, projection, graphBatchSize, async, parallelThreshold, snapshots);
 
             } else {
                 HelpFormatter formatter = new HelpFormatter();
@@ -55,7 +70,9 @@ public class TrainRunner {
     }
 
     private static void run(double learningRate, File input, int embeddingSize, int hiddenSize, int numThreads,
-                            double clipping, File snapshotsDirectory) throws IOException {
+                            double clipping, Precision precision, int checkpointInterval, boolean fused,
+                            boolean projection, int graphBatchSize, boolean async, long parallelThreshold,
+                            File snapshotsDirectory) throws IOException {
 
         List<String> tokens = Arrays.asList("[", "]", "{", "}", "(", ")", "<", ">", Parameters.EOS);
 
@@ -74,7 +91,13 @@ public class TrainRunner {
         double regularizationCoefficient = 0.001;
 
         EncoderDecoderEngine model = new EncoderDecoderEngine(minibatchSize, learningRate, embeddingSize, hiddenSize,
-                numThreads, clipping, regularizationCoefficient, snapshotsDirectory.getCanonicalPath(), tokens);
+                numThreads, clipping, regularizationCoefficient, snapshotsDirectory.getCanonicalPath(), tokens, precision);
+        model.setCheckpointInterval(checkpointInterval);
+        model.setFusedCells(fused);
+        model.setProjectedInputs(projection);
+        model.setGraphBatchSize(graphBatchSize);
+        model.setAsynchronous(async);
+        model.setParallelThreshold(parallelThreshold);
         model.train(trainSet);
 
     }
@@ -0,0 +1,107 @@
+package ru.eventflow.neural.dataset;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Minibatches of examples of similar lengths, so that little of a padded graph is padding.
+ * <p>
+ * Examples are put into buckets by the length of the source, the lengths within a bucket differing by a factor of
+ * at most 1 + ratio, and by the length of the target within a bucket. Every pass over the data shuffles the examples
+ * within the buckets, cuts the buckets (in the order of the lengths) into minibatches and shuffles the minibatches,
+ * so every example is seen once per pass and a minibatch holds a run of consecutive buckets. That is at most two
+ * neighbouring buckets while buckets hold at least a minibatch each, sparse buckets (e.g. a long tail of lengths)
+ * share minibatches, which may then span several of them.
+ * <p>
+ * The examples of a minibatch are ordered by length, so that consecutive ones may share a graph, s.
+ * {@link #cost(List)}.
+ */
+public class BucketSampler {
+
+    private final List<TrainingExample> examples;
+    private final int minibatchSize;
+    private final double ratio;
+    private final Random random;
+    private final List<List<TrainingExample>> pass = new ArrayList<>();
+    private int position;
+    private int passes;
+
+    /**
+     * @param ratio -- the relative difference of source lengths allowed within a bucket, e.g. 0.1
+     */
+    public BucketSampler(Collection<TrainingExample> examples, int minibatchSize, double ratio, Random random) {
+        if (examples.isEmpty() || minibatchSize < 1 || ratio <= 0) {
+            throw new IllegalArgumentException("Examples, a positive minibatch size and a positive ratio are needed");
+        }
+        this.examples = new ArrayList<>(examples);
+        this.minibatchSize = minibatchSize;
+        this.ratio = ratio;
+        this.random = random;
+    }
+
+    /**
+     * @return the next minibatch, a new pass starts when the previous one is exhausted, the last minibatch
+     * of a pass may be smaller
+     */
+    public List<TrainingExample> next() {
+        if (position == pass.size()) {
+            shuffle();
+        }
+        return pass.get(position++);
+    }
+
+    /**
+     * @return all minibatches of a new pass, {@link #next()} starts another one afterwards
+     */
+    public List<List<TrainingExample>> nextPass() {
+        shuffle();
+        position = pass.size();
+        return new ArrayList<>(pass);
+    }
+
+    /**
+     * @return the number of the current pass, starting with 1
+     */
+    public int getPass() {
+        return passes;
+    }
+
+    private void shuffle() {
+        Collections.shuffle(examples, random);
+        // a stable sort, the order within a bucket stays random
+        examples.sort(Comparator.<TrainingExample>comparingInt(e -> bucket(e.getSource().size()))
+                .thenComparingInt(e -> e.getTarget().size()));
+
+        pass.clear();
+        for (int i = 0; i < examples.size(); i += minibatchSize) {
+            List<TrainingExample> minibatch = new ArrayList<>(examples.subList(i, Math.min(i + minibatchSize, examples.size())));
+            minibatch.sort(Comparator.<TrainingExample>comparingInt(e -> e.getSource().size())
+                    .thenComparingInt(e -> e.getTarget().size()));
+            pass.add(minibatch);
+        }
+        Collections.shuffle(pass, random);
+        position = 0;
+        passes++;
+    }
+
+    int bucket(int length) {
+        return (int) Math.floor(Math.log(Math.max(length, 1)) / Math.log1p(ratio));
+    }
+
+    /**
+     * @return the size of a padded graph of the examples, i.e. their number times the longest source and target
+     */
+    public static long cost(List<TrainingExample> examples) {
+        int source = 0;
+        int target = 0;
+        for (TrainingExample example : examples) {
+            source = Math.max(source, example.getSource().size());
+            target = Math.max(target, example.getTarget().size());
+        }
+        return (long) examples.size() * (source + target);
+    }
+}
@@ -5,6 +5,8 @@ import ru.eventflow.neural.Batch;
 import java.util.List;
 
 /**
+ * The mean of any number of children of the same shape, broadcast like {@link Sum}
+ * <p>
  * s. https://stats.stackexchange.com/questions/183840/sum-or-average-of-gradients-in-mini-batch-gradient-decent
  */
 public class Average extends BaseNode {
@@ -23,26 +25,18 @@ public class Average extends BaseNode {
             return value;
         }
 
-        int n = children.size();
         value = new Batch(shape);
         for (Node child : children) {
-            value = value.plus(child.getValue());
-            partials.put(child, Batch.ones(child.shape()).times(1d / n));
+            value.addInPlace(child.getValue());
         }
-        value = value.times(1d / n);
+        value.scaleInPlace(1d / children.size());
 
         return value;
     }
 
     @Override
-    public Batch applyChainRule(Node child) {
-        Batch partial = partials.get(child);
-        Batch dual = getDualValue();
-
-        if (partial.getColumns() != dual.getColumns() || partial.getRows() != dual.getRows()) {
-            throw new IllegalArgumentException("Shape mismatch");
-        }
-        return partial.mul(dual);
+    public Batch applyChainRule(int position) {
+        return Sum.reduce(getDualValue(), children.get(position)).scaleInPlace(1d / children.size());
     }
 
 }
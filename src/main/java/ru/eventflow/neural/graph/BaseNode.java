@@ -3,24 +3,70 @@ package ru.eventflow.neural.graph;
 import ru.eventflow.neural.Batch;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Nodes are compared by identity, each one gets a dense id at construction.
+ * Partials are kept by the position of the child, s. {@link #position(Node)}
+ */
 public abstract class BaseNode implements Node {
 
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    final int id;
+    private final boolean requiresGrad;
     List<Node> children;
     List<Node> parents;
-    Map<Node, Batch> partials;
+    Batch[] partials;
     int[] shape; // like in ND4j
     Batch value;
     Batch dualValue;
 
     BaseNode(int[] shape, Node... children) {
+        this.id = IDS.getAndIncrement();
         this.shape = shape;
         this.children = Arrays.asList(children);
+        boolean requiresGrad = false;
         for (Node child : children) {
             child.addParent(this);
+            requiresGrad |= child.requiresGrad();
         }
+        this.requiresGrad = requiresGrad;
         this.parents = new ArrayList<>();
-        this.partials = new HashMap<>();
+        this.partials = new Batch[children.length];
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * depends on a Variable, known at construction since children are built before their parents
+     */
+    @Override
+    public boolean requiresGrad() {
+        return requiresGrad;
+    }
+
+    /**
+     * partials are computed only for children requiring gradients and outside of no-grad scopes
+     */
+    boolean needsPartial(int position) {
+        return children.get(position).requiresGrad() && NoGrad.isRecording();
+    }
+
+    /**
+     * @return the position of the child among the children (the first one, if it occurs more than once),
+     * a node of a single child or of distinct children only
+     */
+    int position(Node child) {
+        for (int i = 0; i < children.size(); i++) {
+            if (children.get(i) == child) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not a child of " + this);
     }
 
     @Override
@@ -46,11 +92,11 @@ public abstract class BaseNode implements Node {
     public void reset() {
         value = null;
         dualValue = null;
-        partials.clear();
+        Arrays.fill(partials, null);
     }
 
     @Override
-    public Map<Node, Batch> getPartials() {
+    public Batch[] getPartials() {
         return partials;
     }
 
@@ -66,16 +112,24 @@ public abstract class BaseNode implements Node {
         if (parents.size() == 0) {
             dualValue = Batch.ones(shape);
         } else {
-            dualValue = Batch.zeros(shape);
-            for (Node parent : parents) {
-                Batch b = parent.applyChainRule(this);
-                dualValue = dualValue.plus(b);
+            // contributions are owned by us, so the first one becomes the accumulator
+            for (Batch b : contributions(this)) {
+                if (dualValue == null) {
+                    dualValue = b;
+                } else {
+                    dualValue.addInPlace(b);
+                }
             }
         }
 
         return dualValue;
     }
 
+    @Override
+    public void setDualValue(Batch dualValue) {
+        this.dualValue = dualValue;
+    }
+
     /**
      * batch size, 3d tensor depth
      */
@@ -94,13 +148,56 @@ public abstract class BaseNode implements Node {
         return shape[2];
     }
 
+    /**
+     * @return the contributions of all parents to the dual of the node, one per position of the node among
+     * the children of a parent (a parent is listed once per position)
+     */
+    static List<Batch> contributions(Node node) {
+        List<Batch> contributions = new ArrayList<>();
+        List<Node> parents = node.getParents();
+        for (int i = 0; i < parents.size(); i++) {
+            Node parent = parents.get(i);
+            if (parents.indexOf(parent) < i) {
+                continue; // all positions are taken the first time
+            }
+            List<Node> siblings = parent.getChildren();
+            for (int position = 0; position < siblings.size(); position++) {
+                if (siblings.get(position) == node) {
+                    contributions.add(parent.applyChainRule(position));
+                }
+            }
+        }
+        return contributions;
+    }
+
     @Override
-    public Batch applyChainRule(Node child) {
+    public Batch applyChainRule(int position) {
         Batch dual = getDualValue();
-        Batch partial = partials.get(child);
+        Batch partial = partial(position);
         return partial.times(dual);
     }
 
+    /**
+     * @return the partial w.r.t. the child at the position, s. {@link #needsPartial(int)}
+     */
+    Batch partial(int position) {
+        Batch partial = partials[position];
+        if (partial == null) {
+            throw new IllegalStateException("No partial of " + this + ", the child does not require gradients " +
+                    "or the node was evaluated in a no-grad scope");
+        }
+        return partial;
+    }
+
+    /**
+     * target[to + j] += source[from + j] for j < length, e.g. the dual of a part of the value
+     */
+    static void addFlat(Batch source, int from, Batch target, int to, int length) {
+        for (int j = 0; j < length; j++) {
+            target.putFlat(to + j, target.getFlat(to + j) + source.getFlat(from + j));
+        }
+    }
+
     public Node copy() {
         throw new AssertionError("Not implemented");
     }
@@ -120,16 +217,8 @@ public abstract class BaseNode implements Node {
         return sb.toString();
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-        BaseNode baseNode = (BaseNode) o;
-        return Objects.equals(children, baseNode.children);
-    }
-
     @Override
     public int hashCode() {
-        return Objects.hash(children);
+        return id;
     }
 }
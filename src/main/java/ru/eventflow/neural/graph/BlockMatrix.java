@@ -0,0 +1,95 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+
+/**
+ * A matrix assembled of blocks given row by row, e.g. the stacked weights of the gates of a {@link FusedLSTMCell}:
+ * <pre>
+ * | W_i U_i |
+ * | W_f U_f |
+ * | W_o U_o |
+ * | W_c U_c |
+ * </pre>
+ * The blocks of a row have the same number of rows, the blocks of a column the same number of columns.
+ * The dual of a block is the corresponding part of the dual.
+ */
+public class BlockMatrix extends BaseNode {
+
+    final int blockColumns;
+
+    public BlockMatrix(int[] shape, int blockColumns, Node... blocks) {
+        super(shape, blocks);
+        if (blocks.length % blockColumns != 0) {
+            throw new IllegalArgumentException("Incomplete row of blocks");
+        }
+        this.blockColumns = blockColumns;
+    }
+
+    @Override
+    public Batch getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        int rows = 0;
+        for (int r = 0; r < children.size(); r += blockColumns) {
+            rows += children.get(r).getValue().getRows();
+        }
+        int columns = 0;
+        for (int k = 0; k < blockColumns; k++) {
+            columns += children.get(k).getValue().getColumns();
+        }
+        value = new Batch(new int[]{1, rows, columns});
+
+        int rowOffset = 0;
+        for (int r = 0; r < children.size(); r += blockColumns) {
+            int columnOffset = 0;
+            for (int k = r; k < r + blockColumns; k++) {
+                Batch block = children.get(k).getValue();
+                copyBlock(block, value, rowOffset, columnOffset);
+                columnOffset += block.getColumns();
+            }
+            rowOffset += children.get(r).getValue().getRows();
+        }
+        return value;
+    }
+
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch dual = getDualValue();
+        Batch result = new Batch(children.get(position).shape());
+
+        int row = position / blockColumns * blockColumns;
+        int rowOffset = 0;
+        for (int r = 0; r < row; r += blockColumns) {
+            rowOffset += children.get(r).getRows();
+        }
+        int columnOffset = 0;
+        for (int k = row; k < position; k++) {
+            columnOffset += children.get(k).getColumns();
+        }
+        addBlock(dual, rowOffset, columnOffset, result);
+        return result;
+    }
+
+    /**
+     * copies the block into the matrix at the offsets
+     */
+    static void copyBlock(Batch block, Batch matrix, int rowOffset, int columnOffset) {
+        for (int j = 0; j < block.getRows(); j++) {
+            Batch.arraycopy(block, j * block.getRowStride(),
+                    matrix, (rowOffset + j) * matrix.getRowStride() + columnOffset, block.getColumns());
+        }
+    }
+
+    /**
+     * result += the part of the matrix at the offsets of the result's shape
+     */
+    static void addBlock(Batch matrix, int rowOffset, int columnOffset, Batch result) {
+        for (int j = 0; j < result.getRows(); j++) {
+            int from = (rowOffset + j) * matrix.getRowStride() + columnOffset;
+            int to = j * result.getRowStride();
+            addFlat(matrix, from, result, to, result.getColumns());
+        }
+    }
+}
@@ -0,0 +1,490 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.Precision;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A graph lowered to a flat plan by {@link GraphCompiler}.
+ * <p>
+ * Slots are in topological order, the forward pass is a single loop over them with a switch on the opcode,
+ * the backward pass the same loop in reverse. Kernels write into the preallocated batches of the slots, so a run
+ * allocates nothing apart from precision conversions of the inputs.
+ * <p>
+ * Values and gradients are owned by the plan and are overwritten by the next run. The nodes keep no values.
+ * <p>
+ * Transient slots of checkpointed segments share their batches with the same slots of the other segments. Before
+ * the backward pass enters a segment, the segment is recomputed from the kept values unless it was the last one
+ * computed.
+ * <p>
+ * Slots of the same depth do not depend on each other (e.g. the four gates of an LSTM cell), so the forward pass
+ * may compute them concurrently, s. {@link #forward(ForkJoinPool, long)}.
+ */
+public final class CompiledGraph {
+
+    static final int VARIABLE = 0;
+    static final int PLACEHOLDER = 1;
+    static final int SUM = 2;
+    static final int MUL = 3;
+    static final int MATMUL = 4;
+    static final int MATMUL_TRANSPOSED = 5;
+    static final int SIGMOID = 6;
+    static final int TANH = 7;
+    static final int RELU = 8;
+    static final int EXP = 9;
+    static final int SOFTMAX = 10;
+    static final int SOFTMAX_CROSS_ENTROPY = 11;
+    static final int CONCAT = 12;
+    static final int PACK = 13;
+    static final int BLOCK_MATRIX = 14;
+    static final int FUSED_LSTM = 15;
+    static final int SLICE = 16;
+    static final int UNPACK = 17;
+    static final int AVERAGE = 18;
+    static final int SEQUENCE_LOSS = 19;
+
+    private final Node[] nodes;
+    private final int[] opcodes;
+    private final int[][] operands; // slots of the children
+    private final boolean[] needsGradient; // i.e. depends on a Variable
+    private final Batch[] values;
+    private final Batch[] gradients;
+    private final Batch[][] scratch; // temporaries of the backward pass, partials of the loss, states of fused cells
+    private final Map<Node, Integer> slots;
+    private final int[] segments; // of the slots, -1 outside of segments
+    private final int[][] ranges; // first and last slots of the segments
+    private final boolean[] transients; // values and gradients shared between segments
+    private final Precision precision;
+    private final int root;
+    private final int[][] levels; // slots by the length of the longest path to a leaf
+    private final long[] work; // estimated multiplications of each slot, s. GraphExecutor#work(Node)
+    private int materialized = -1; // the segment the shared batches hold
+
+    CompiledGraph(Node[] nodes, int[] opcodes, int[][] operands, boolean[] needsGradient,
+                  Batch[] values, Batch[] gradients, Batch[][] scratch, Map<Node, Integer> slots,
+                  int[] segments, int[][] ranges, boolean[] transients, Precision precision) {
+        this.nodes = nodes;
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.needsGradient = needsGradient;
+        this.values = values;
+        this.gradients = gradients;
+        this.scratch = scratch;
+        this.slots = slots;
+        this.segments = segments;
+        this.ranges = ranges;
+        this.transients = transients;
+        this.precision = precision;
+        this.root = nodes.length - 1;
+
+        this.work = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            work[i] = GraphExecutor.work(nodes[i]);
+        }
+        this.levels = Levels.levels(nodes.length, i -> operands[i]);
+    }
+
+    /**
+     * @return the value of the root, owned by the plan
+     */
+    public Batch forward() {
+        for (int i = 0; i < nodes.length; i++) {
+            compute(i);
+            if (segments[i] >= 0) {
+                materialized = segments[i];
+            }
+        }
+        return values[root];
+    }
+
+    /**
+     * The forward pass level by level, the slots of a level with at least the threshold of work are computed
+     * on the pool, the rest inline by the calling thread. Every slot writes its own batches only.
+     * <p>
+     * Checkpointed segments share the batches of their transient slots, so a plan with segments is computed
+     * slot by slot, s. {@link #forward()}.
+     *
+     * @param threshold -- estimated multiplications (e.g. rows x columns of a matrix times a vector)
+     * @return the value of the root, owned by the plan
+     */
+    public Batch forward(ForkJoinPool pool, long threshold) {
+        if (ranges.length > 0) {
+            return forward();
+        }
+        for (int[] level : levels) {
+            Levels.run(level, work, threshold, pool, this::compute, this::computeOnPool);
+        }
+        return values[root];
+    }
+
+    private void computeOnPool(int i) {
+        Precision previous = Precision.set(precision);
+        try {
+            compute(i);
+        } finally {
+            Precision.set(previous);
+        }
+    }
+
+    private void compute(int i) {
+        int[] o = operands[i];
+        Batch out = values[i];
+        switch (opcodes[i]) {
+            case VARIABLE:
+            case PLACEHOLDER:
+                // inputs may be replaced between runs
+                Batch value = nodes[i].getValue();
+                values[i] = value.toPrecision(precision);
+                break;
+            case SUM:
+            case AVERAGE:
+                // an operand of a single slice (e.g. a bias) is broadcast over the minibatch
+                out.fill(0);
+                for (int operand : o) {
+                    out.addInPlace(values[operand]);
+                }
+                if (opcodes[i] == AVERAGE) {
+                    out.scaleInPlace(1d / o.length);
+                }
+                break;
+            case MUL:
+                values[o[0]].copyInto(out).mulInPlace(values[o[1]]);
+                break;
+            case MATMUL:
+                values[o[0]].timesInto(false, values[o[1]], false, out, false);
+                break;
+            case MATMUL_TRANSPOSED:
+                values[o[0]].timesInto(true, values[o[1]], false, out, false);
+                break;
+            case SIGMOID:
+                values[o[0]].sigmoidInto(out);
+                break;
+            case TANH:
+                values[o[0]].tanhInto(out);
+                break;
+            case RELU:
+                values[o[0]].reluInto(out);
+                break;
+            case EXP:
+                values[o[0]].expInto(out);
+                break;
+            case SOFTMAX:
+                for (int k = 0; k < out.getSize(); k++) {
+                    Softmax.softmax(values[o[0]], out, out.offset(k), out.getRows());
+                }
+                break;
+            case SOFTMAX_CROSS_ENTROPY:
+                SoftmaxCrossEntropy loss = (SoftmaxCrossEntropy) nodes[i];
+                out.putFlat(0, SoftmaxCrossEntropy.loss(values[o[0]], loss.gold, loss.weights, scratch[i][0]));
+                break;
+            case SEQUENCE_LOSS: {
+                SequenceLoss sequence = (SequenceLoss) nodes[i];
+                double sum = 0;
+                for (int t = 0; t < o.length; t++) {
+                    sum += SoftmaxCrossEntropy.loss(values[o[t]], sequence.gold[t], sequence.weights[t], scratch[i][t]);
+                }
+                out.putFlat(0, sum);
+                break;
+            }
+            case CONCAT:
+                for (int k = 0; k < out.getSize(); k++) {
+                    int offset = out.offset(k);
+                    for (int operand : o) {
+                        Batch part = values[operand];
+                        Batch.arraycopy(part, part.offset(k), out, offset, part.getRows());
+                        offset += part.getRows();
+                    }
+                }
+                break;
+            case PACK:
+                for (int k = 0; k < o.length; k++) {
+                    Batch column = values[o[k]];
+                    for (int b = 0; b < column.getSize(); b++) {
+                        for (int j = 0; j < column.getRows(); j++) {
+                            out.put(b, j, k, column.get(b, j, 0));
+                        }
+                    }
+                }
+                break;
+            case BLOCK_MATRIX: {
+                int columns = ((BlockMatrix) nodes[i]).blockColumns;
+                int rowOffset = 0;
+                for (int r = 0; r < o.length; r += columns) {
+                    int columnOffset = 0;
+                    for (int k = r; k < r + columns; k++) {
+                        BlockMatrix.copyBlock(values[o[k]], out, rowOffset, columnOffset);
+                        columnOffset += values[o[k]].getColumns();
+                    }
+                    rowOffset += values[o[r]].getRows();
+                }
+                break;
+            }
+            case FUSED_LSTM: {
+                Batch[] state = scratch[i];
+                FusedLSTMCell.forward(values[o[0]], values[o[1]], values[o[2]], values[o[3]], values[o[4]],
+                        state[0], state[1], state[2], out);
+                break;
+            }
+            case SLICE:
+                Batch.arraycopy(values[o[0]], ((Slice) nodes[i]).offset * values[o[0]].getRowStride(), out, 0, out.length());
+                break;
+            case UNPACK:
+                Unpack.column(values[o[0]], ((Unpack) nodes[i]).column, out);
+                break;
+            default:
+                throw new AssertionError(opcodes[i]);
+        }
+    }
+
+    /**
+     * gradients of the root w.r.t. every slot depending on a Variable, the forward pass must have been run
+     */
+    public void backward() {
+        for (Batch gradient : gradients) {
+            if (gradient != null) {
+                gradient.fill(0);
+            }
+        }
+        if (!needsGradient[root]) {
+            return;
+        }
+        gradients[root].fill(1);
+
+        int entered = -1;
+        for (int i = root; i >= 0; i--) {
+            if (segments[i] >= 0 && segments[i] != entered) {
+                entered = segments[i];
+                enter(entered);
+            }
+            if (!needsGradient[i]) {
+                continue;
+            }
+            int[] o = operands[i];
+            Batch g = gradients[i];
+            switch (opcodes[i]) {
+                case VARIABLE:
+                case PLACEHOLDER:
+                    break;
+                case SUM:
+                    for (int operand : o) {
+                        if (needsGradient[operand]) {
+                            gradients[operand].addInPlace(g);
+                        }
+                    }
+                    break;
+                case AVERAGE:
+                    for (int operand : o) {
+                        if (needsGradient[operand]) {
+                            g.copyInto(scratch[i][0]).scaleInPlace(1d / o.length);
+                            gradients[operand].addInPlace(scratch[i][0]);
+                        }
+                    }
+                    break;
+                case MUL:
+                    for (int j = 0; j < 2; j++) {
+                        if (needsGradient[o[j]]) {
+                            g.copyInto(scratch[i][0]).mulInPlace(values[o[1 - j]]);
+                            gradients[o[j]].addInPlace(scratch[i][0]);
+                        }
+                    }
+                    break;
+                case MATMUL:
+                    // W_bar += b_bar x a^T, a_bar += W^T x b_bar
+                    if (needsGradient[o[0]]) {
+                        g.timesInto(false, values[o[1]], true, gradients[o[0]], true);
+                    }
+                    if (needsGradient[o[1]]) {
+                        values[o[0]].timesInto(true, g, false, gradients[o[1]], true);
+                    }
+                    break;
+                case MATMUL_TRANSPOSED:
+                    // W_bar += a x b_bar^T, a_bar += W x b_bar
+                    if (needsGradient[o[0]]) {
+                        values[o[1]].timesInto(false, g, true, gradients[o[0]], true);
+                    }
+                    if (needsGradient[o[1]]) {
+                        values[o[0]].timesInto(false, g, false, gradients[o[1]], true);
+                    }
+                    break;
+                case SIGMOID:
+                    addElementWise(o[0], values[i].sigmoidDerivativeInto(scratch[i][0]).mulInPlace(g));
+                    break;
+                case TANH:
+                    addElementWise(o[0], values[i].tanhDerivativeInto(scratch[i][0]).mulInPlace(g));
+                    break;
+                case RELU:
+                    addElementWise(o[0], values[o[0]].reluDerivativeInto(scratch[i][0]).mulInPlace(g));
+                    break;
+                case EXP:
+                    addElementWise(o[0], values[i].copyInto(scratch[i][0]).mulInPlace(g));
+                    break;
+                case SOFTMAX:
+                    if (needsGradient[o[0]]) {
+                        for (int k = 0; k < g.getSize(); k++) {
+                            Softmax.addVectorJacobianProduct(values[i], g, gradients[o[0]], g.offset(k), g.getRows());
+                        }
+                    }
+                    break;
+                case SOFTMAX_CROSS_ENTROPY:
+                    if (needsGradient[o[0]]) {
+                        gradients[o[0]].axpy(g.getFlat(0), scratch[i][0]);
+                    }
+                    break;
+                case SEQUENCE_LOSS:
+                    for (int t = 0; t < o.length; t++) {
+                        if (needsGradient[o[t]]) {
+                            gradients[o[t]].axpy(g.getFlat(0), scratch[i][t]);
+                        }
+                    }
+                    break;
+                case CONCAT:
+                    for (int k = 0; k < g.getSize(); k++) {
+                        int offset = g.offset(k);
+                        for (int operand : o) {
+                            Batch target = gradients[operand];
+                            int rows = values[operand].getRows();
+                            if (target != null) {
+                                BaseNode.addFlat(g, offset, target, target.offset(k), rows);
+                            }
+                            offset += rows;
+                        }
+                    }
+                    break;
+                case PACK:
+                    for (int k = 0; k < o.length; k++) {
+                        Batch target = gradients[o[k]];
+                        if (target != null) {
+                            for (int b = 0; b < target.getSize(); b++) {
+                                for (int j = 0; j < target.getRows(); j++) {
+                                    target.put(b, j, 0, target.get(b, j, 0) + g.get(b, j, k));
+                                }
+                            }
+                        }
+                    }
+                    break;
+                case BLOCK_MATRIX: {
+                    int columns = ((BlockMatrix) nodes[i]).blockColumns;
+                    int rowOffset = 0;
+                    for (int r = 0; r < o.length; r += columns) {
+                        int columnOffset = 0;
+                        for (int k = r; k < r + columns; k++) {
+                            if (needsGradient[o[k]]) {
+                                BlockMatrix.addBlock(g, rowOffset, columnOffset, gradients[o[k]]);
+                            }
+                            columnOffset += values[o[k]].getColumns();
+                        }
+                        rowOffset += values[o[r]].getRows();
+                    }
+                    break;
+                }
+                case FUSED_LSTM:
+                    backwardFusedLSTM(i, o, g);
+                    break;
+                case SLICE:
+                    if (needsGradient[o[0]]) {
+                        BaseNode.addFlat(g, 0, gradients[o[0]], ((Slice) nodes[i]).offset * g.getRowStride(), g.length());
+                    }
+                    break;
+                case UNPACK:
+                    if (needsGradient[o[0]]) {
+                        Unpack.addColumn(g, gradients[o[0]], ((Unpack) nodes[i]).column);
+                    }
+                    break;
+                default:
+                    throw new AssertionError(opcodes[i]);
+            }
+        }
+    }
+
+    /**
+     * operands: stacked weights, bias, x, h_previous, c_previous
+     */
+    private void backwardFusedLSTM(int i, int[] o, Batch g) {
+        Batch[] state = scratch[i];
+        Batch xh = state[0];
+        Batch z_bar = state[3];
+        Batch xh_bar = state[4];
+        Batch c_previous_bar = state[5];
+        int hiddenSize = values[o[3]].getRows();
+        int inputSize = xh.getRows() - hiddenSize; // 0 for a projected input
+
+        FusedLSTMCell.backward(g, state[1], state[2], values[o[4]], z_bar, c_previous_bar);
+        if (needsGradient[o[0]]) {
+            z_bar.timesInto(false, xh, true, gradients[o[0]], true);
+        }
+        if (needsGradient[o[1]]) {
+            BaseNode.addFlat(z_bar, hiddenSize, gradients[o[1]], 0, hiddenSize);
+        }
+        if (needsGradient[o[2]] || needsGradient[o[3]]) {
+            values[o[0]].timesInto(true, z_bar, false, xh_bar, false);
+            if (needsGradient[o[2]] && inputSize == 0) {
+                gradients[o[2]].addInPlace(z_bar);
+            } else if (needsGradient[o[2]]) {
+                BaseNode.addFlat(xh_bar, 0, gradients[o[2]], 0, inputSize);
+            }
+            if (needsGradient[o[3]]) {
+                BaseNode.addFlat(xh_bar, inputSize, gradients[o[3]], 0, hiddenSize);
+            }
+        }
+        if (needsGradient[o[4]]) {
+            gradients[o[4]].addInPlace(c_previous_bar);
+        }
+    }
+
+    /**
+     * restores the values of the segment and clears the gradients it shares
+     */
+    private void enter(int segment) {
+        int first = ranges[segment][0];
+        int last = ranges[segment][1];
+        if (materialized != segment) {
+            for (int i = first; i <= last; i++) {
+                if (segments[i] == segment) {
+                    compute(i);
+                }
+            }
+            materialized = segment;
+        }
+        for (int i = first; i <= last; i++) {
+            if (transients[i] && gradients[i] != null) {
+                gradients[i].fill(0);
+            }
+        }
+    }
+
+    private void addElementWise(int operand, Batch contribution) {
+        if (needsGradient[operand]) {
+            gradients[operand].addInPlace(contribution);
+        }
+    }
+
+    /**
+     * @return the value of the node computed by the last forward pass, for a transient node of a checkpointed
+     * segment the batch may hold the value of another segment
+     */
+    public Batch getValue(Node node) {
+        return values[slot(node)];
+    }
+
+    /**
+     * @return the gradient of the root w.r.t. the node computed by the last backward pass,
+     * null if the node does not depend on any Variable
+     */
+    public Batch getGradient(Node node) {
+        return gradients[slot(node)];
+    }
+
+    public boolean contains(Node node) {
+        return slots.containsKey(node);
+    }
+
+    private int slot(Node node) {
+        Integer slot = slots.get(node);
+        if (slot == null) {
+            throw new IllegalArgumentException("The node is not part of the graph");
+        }
+        return slot;
+    }
+}
@@ -1,21 +1,17 @@
 package ru.eventflow.neural.graph;
 
-import Jama.Matrix;
 import ru.eventflow.neural.Batch;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Конкатенация двух векторов,
  * Градиент, входящий на обратном пути, просто разбивается на части по длине конкатенируемых векторов в порядке,
  * в котором они конкатенировались
  *
- * Пока только для векторов
+ * Пока только для векторов (и минибатчей векторов одного размера)
  */
 public class Concat extends BaseNode {
 
-    private Map<Node, Integer> indices = new HashMap<>();
+    private int[] indices; // starting index of each vector being concatenated
 
     public Concat(int[] shape, Node... children) {
         super(shape, children);
@@ -27,16 +23,20 @@ public class Concat extends BaseNode {
             return value;
         }
 
+        indices = new int[children.size()];
         int totalLength = 0;
-        for (Node child : children) {
-            indices.put(child, totalLength); // starting index of the vector being concatenated
-            totalLength += child.getRows();
+        for (int i = 0; i < children.size(); i++) {
+            indices[i] = totalLength;
+            totalLength += children.get(i).getRows();
         }
 
-        Batch value = new Batch(new int[]{1, totalLength, 1});
-        for (Node child : children) {
-            int offset = indices.get(child);
-            value.get(0).setMatrix(offset, offset + child.getRows() - 1, 0, 0, child.getValue().get(0));
+        int size = children.get(0).getSize();
+        value = new Batch(new int[]{size, totalLength, 1});
+        for (int i = 0; i < children.size(); i++) {
+            Batch v = children.get(i).getValue();
+            for (int k = 0; k < size; k++) {
+                Batch.arraycopy(v, v.offset(k), value, value.offset(k) + indices[i], v.getRows());
+            }
         }
 
         return value;
@@ -46,13 +46,14 @@ public class Concat extends BaseNode {
      * for each child simply use a corresponding portion of the gradient, i.e. split the dual
      */
     @Override
-    public Batch applyChainRule(Node child) {
+    public Batch applyChainRule(int position) {
         Batch dual = getDualValue();
-        Matrix m = dual.get(0);
-        int offset = indices.get(child);
-        Matrix portion = m.getMatrix(offset, offset + child.getRows() - 1, 0, dual.getColumns() - 1);
-        Batch dualSplit = new Batch(new int[]{1, child.getRows(), dual.getColumns()});
-        dualSplit.put(0, portion);
+        Node child = children.get(position);
+        int offset = indices[position];
+        Batch dualSplit = new Batch(new int[]{dual.getSize(), child.getRows(), 1});
+        for (int k = 0; k < dual.getSize(); k++) {
+            Batch.arraycopy(dual, dual.offset(k) + offset, dualSplit, dualSplit.offset(k), child.getRows());
+        }
         return dualSplit;
     }
 }
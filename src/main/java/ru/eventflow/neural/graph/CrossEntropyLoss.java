@@ -27,7 +27,8 @@ public class CrossEntropyLoss extends BaseNode {
 
         Batch m_hat = y_hat.getValue();
         Batch m = y.getValue();
-        Batch partial = new Batch(y.shape());
+        boolean recording = needsPartial(position(y_hat));
+        Batch partial = recording ? new Batch(y.shape()) : null;
 
         int batchSize = y.getSize();
 
@@ -35,22 +36,23 @@ public class CrossEntropyLoss extends BaseNode {
         double loss = 0;
         for (int j = 0; j < batchSize; j++) {
             for (int i = 0; i < vectorSize; i++) {
-                int[] idx = new int[]{j, i, 0};
-                double y_i = m.getDouble(idx);
-                double yhat_i = m_hat.getDouble(idx);
+                double y_i = m.get(j, i, 0);
+                double yhat_i = m_hat.get(j, i, 0);
 
                 loss -= y_i * Math.log(yhat_i) + (1 - y_i) * Math.log(1 - yhat_i);
 
-                double dd = -y_i / yhat_i + (1 - y_i) / (1 - yhat_i);
-                partial.put(idx, dd / vectorSize);
+                if (recording) {
+                    double dd = -y_i / yhat_i + (1 - y_i) / (1 - yhat_i);
+                    partial.put(j, i, 0, dd / vectorSize);
+                }
             }
         }
         loss = loss / vectorSize / batchSize;
 
-        partials.put(y_hat, partial);
+        partials[position(y_hat)] = partial;
 
         value = new Batch(shape);
-        value.put(new int[]{0, 0, 0}, loss);
+        value.put(0, 0, 0, loss);
         return value;
     }
 
@@ -0,0 +1,50 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+
+/**
+ * A function applied to each element of the only child.
+ * <p>
+ * The Jacobian is diagonal, so only its diagonal is kept, as a partial of the same shape as the child,
+ * and the chain rule is a Hadamard product: O(n) instead of an n-by-n matrix per vector.
+ */
+public abstract class ElementWiseNode extends BaseNode {
+
+    protected final Node child;
+
+    ElementWiseNode(int[] shape, Node child) {
+        super(shape, child);
+        this.child = child;
+    }
+
+    /**
+     * f(x) for each element
+     */
+    protected abstract Batch apply(Batch in);
+
+    /**
+     * f'(x) for each element, given both the input and the output
+     */
+    protected abstract Batch derivative(Batch in, Batch out);
+
+    @Override
+    public Batch getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        Batch in = child.getValue();
+        value = apply(in);
+        if (needsPartial(0)) {
+            partials[0] = derivative(in, value);
+        }
+        return value;
+    }
+
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch dual = getDualValue();
+        Batch partial = partial(0);
+        return partial.mul(dual);
+    }
+}
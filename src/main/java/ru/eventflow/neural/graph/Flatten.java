@@ -1,6 +1,5 @@
 package ru.eventflow.neural.graph;
 
-import Jama.Matrix;
 import ru.eventflow.neural.Batch;
 
 /**
@@ -25,10 +24,11 @@ public class Flatten extends BaseNode {
             return value;
         }
 
-        Batch value = new Batch(shape);
+        Batch in = child.getValue();
+        value = new Batch(shape);
         for (int i = 0; i < child.getColumns(); i++) { // vector
             for (int j = 0; j < child.getRows(); j++) { // vector component
-                value.put(new int[]{0, i * child.getRows() + j, 0}, child.getValue().get(new int[]{0, j, i}));
+                value.put(0, i * child.getRows() + j, 0, in.get(0, j, i));
             }
         }
 
@@ -39,12 +39,13 @@ public class Flatten extends BaseNode {
      * just reshape the partial from above
      */
     @Override
-    public Batch applyChainRule(Node child) {
-        Matrix dual = getDualValue().get(0);
+    public Batch applyChainRule(int position) {
+        Node child = children.get(position);
+        Batch dual = getDualValue();
         Batch t = new Batch(child.shape());
         for (int i = 0; i < child.getColumns(); i++) { // vector
             for (int j = 0; j < child.getRows(); j++) { // vector component
-                t.put(new int[]{0, j, i}, dual.get(i * child.getRows() + j, 0));
+                t.put(0, j, i, dual.get(0, i * child.getRows() + j, 0));
             }
         }
         return t;
@@ -34,29 +34,32 @@ public class FrobeniusNorm extends BaseNode {
         }
 
         Batch m = matrix.getValue();
-        Batch partial = new Batch(matrix.shape());
+        boolean recording = needsPartial(0);
+        Batch partial = recording ? new Batch(matrix.shape()) : null;
 
         // result
         double sum = 0;
         for (int i = 0; i < m.getRows(); i++) {
             for (int j = 0; j < m.getColumns(); j++) {
-                double v = m.getDouble(new int[]{0, i, j});
+                double v = m.get(0, i, j);
                 sum += v * v;
             }
         }
         double norm = Math.sqrt(sum);
 
         // derivative
-        for (int i = 0; i < m.getRows(); i++) {
-            for (int j = 0; j < m.getColumns(); j++) {
-                double v = m.getDouble(new int[]{0, i, j});
-                partial.put(new int[]{0, i, j}, v / norm);
+        if (recording) {
+            for (int i = 0; i < m.getRows(); i++) {
+                for (int j = 0; j < m.getColumns(); j++) {
+                    double v = m.get(0, i, j);
+                    partial.put(0, i, j, v / norm);
+                }
             }
         }
-        partials.put(matrix, partial);
+        partials[0] = partial;
 
         value = new Batch(new int[]{1, 1, 1});
-        value.put(new int[]{0, 0, 0}, norm);
+        value.put(0, 0, 0, norm);
         return value;
     }
 
@@ -64,9 +67,9 @@ public class FrobeniusNorm extends BaseNode {
      * short-circuiting here a little bit, since we know that the dual is scalar
      */
     @Override
-    public Batch applyChainRule(Node child) {
+    public Batch applyChainRule(int position) {
         Batch dual = getDualValue();
-        Batch partial = partials.get(child);
-        return partial.times(dual.get(new int[]{0, 0, 0}));
+        Batch partial = partial(position);
+        return partial.times(dual.get(0, 0, 0));
     }
 }
@@ -0,0 +1,182 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+
+/**
+ * A whole LSTM step as a single node, its value is the new hidden state and memory stacked: [h; c].
+ * <p>
+ * The weights of the four gates (input, forget, output, candidate memory) for the input and the previous hidden state
+ * are stacked into one [4h, e + h] matrix, s. {@link BlockMatrix}, so that all pre-activations come out of a single
+ * matrix-vector product with [x; h_previous]:
+ * <pre>
+ * z = W x [x; h_previous] + [0; b_f; 0; 0]
+ * i, f, o = sigmoid(z_i), sigmoid(z_f), sigmoid(z_o)
+ * g = tanh(z_c)
+ * c = f * c_previous + i * g
+ * h = o * tanh(c)
+ * </pre>
+ * If the weights have only h columns (the U_* part), x is taken to be the input projection of all gates W x x
+ * already computed, e.g. for all timesteps at once, and z = x + W x h_previous + [0; b_f; 0; 0].
+ * <p>
+ * The backward pass is written out by hand, the pre-activation gradient z_bar is computed once per dual
+ * and shared by all children.
+ */
+public class FusedLSTMCell extends BaseNode {
+
+    final Node weights;
+    final Node bias;
+    final Node x;
+    final Node h_previous;
+    final Node c_previous;
+
+    // kept from the forward pass
+    private Batch xh;
+    private Batch gates;
+    private Batch tanhC;
+
+    // computed from the dual
+    private Batch dualUsed;
+    private Batch z_bar;
+    private Batch xh_bar;
+    private Batch c_previous_bar;
+
+    public FusedLSTMCell(int[] shape, Node weights, Node bias, Node x, Node h_previous, Node c_previous) {
+        super(shape, weights, bias, x, h_previous, c_previous);
+        this.weights = weights;
+        this.bias = bias;
+        this.x = x;
+        this.h_previous = h_previous;
+        this.c_previous = c_previous;
+    }
+
+    @Override
+    public Batch getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        int hiddenSize = h_previous.getRows();
+        Batch w = weights.getValue();
+        xh = new Batch(new int[]{1, w.getColumns(), 1});
+        gates = new Batch(new int[]{1, 4 * hiddenSize, 1});
+        tanhC = new Batch(new int[]{1, hiddenSize, 1});
+        value = new Batch(new int[]{1, 2 * hiddenSize, 1});
+        forward(w, bias.getValue(), x.getValue(), h_previous.getValue(), c_previous.getValue(),
+                xh, gates, tanhC, value);
+        return value;
+    }
+
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch dual = getDualValue();
+        if (dualUsed != dual) {
+            z_bar = new Batch(gates.shape());
+            c_previous_bar = new Batch(tanhC.shape());
+            backward(dual, gates, tanhC, c_previous.getValue(), z_bar, c_previous_bar);
+            xh_bar = x.requiresGrad() || h_previous.requiresGrad() ? weights.getValue().transposeTimes(z_bar) : null;
+            dualUsed = dual;
+        }
+
+        Batch result = new Batch(children.get(position).shape());
+        addContribution(position, result);
+        return result;
+    }
+
+    private void addContribution(int position, Batch result) {
+        int hiddenSize = tanhC.getRows();
+        int inputSize = xh.getRows() - hiddenSize; // 0 for a projected input
+        switch (position) {
+            case 0:
+                z_bar.timesInto(false, xh, true, result, true);
+                break;
+            case 1:
+                addFlat(z_bar, hiddenSize, result, 0, hiddenSize);
+                break;
+            case 2:
+                if (inputSize == 0) {
+                    result.addInPlace(z_bar);
+                } else {
+                    addFlat(xh_bar, 0, result, 0, inputSize);
+                }
+                break;
+            case 3:
+                addFlat(xh_bar, inputSize, result, 0, hiddenSize);
+                break;
+            default:
+                result.addInPlace(c_previous_bar);
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        xh = null;
+        gates = null;
+        tanhC = null;
+        dualUsed = null;
+        z_bar = null;
+        xh_bar = null;
+        c_previous_bar = null;
+    }
+
+    /**
+     * out = [h; c], xh, gates (after the nonlinearities) and tanh(c) are kept for the backward pass,
+     * xh is [x; h_previous] or h_previous only for a projected input
+     */
+    static void forward(Batch weights, Batch bias, Batch x, Batch h_previous, Batch c_previous,
+                        Batch xh, Batch gates, Batch tanhC, Batch out) {
+        int hiddenSize = h_previous.getRows();
+        int inputSize = xh.getRows() - hiddenSize;
+
+        Batch.arraycopy(x, 0, xh, 0, inputSize);
+        Batch.arraycopy(h_previous, 0, xh, inputSize, hiddenSize);
+        weights.timesInto(false, xh, false, gates, false);
+        if (inputSize == 0) {
+            gates.addInPlace(x);
+        }
+
+        for (int j = 0; j < hiddenSize; j++) {
+            double i = sigmoid(gates.getFlat(j));
+            double f = sigmoid(gates.getFlat(hiddenSize + j) + bias.getFlat(j));
+            double o = sigmoid(gates.getFlat(2 * hiddenSize + j));
+            double g = Math.tanh(gates.getFlat(3 * hiddenSize + j));
+            gates.putFlat(j, i);
+            gates.putFlat(hiddenSize + j, f);
+            gates.putFlat(2 * hiddenSize + j, o);
+            gates.putFlat(3 * hiddenSize + j, g);
+
+            double c = f * c_previous.getFlat(j) + i * g;
+            double t = Math.tanh(c);
+            tanhC.putFlat(j, t);
+            out.putFlat(j, o * t);
+            out.putFlat(hiddenSize + j, c);
+        }
+    }
+
+    /**
+     * the gradients w.r.t. the pre-activations z and the previous memory, given the dual [h_bar; c_bar]
+     */
+    static void backward(Batch dual, Batch gates, Batch tanhC, Batch c_previous, Batch z_bar, Batch c_previous_bar) {
+        int hiddenSize = tanhC.getRows();
+        for (int j = 0; j < hiddenSize; j++) {
+            double i = gates.getFlat(j);
+            double f = gates.getFlat(hiddenSize + j);
+            double o = gates.getFlat(2 * hiddenSize + j);
+            double g = gates.getFlat(3 * hiddenSize + j);
+            double t = tanhC.getFlat(j);
+
+            double h_bar = dual.getFlat(j);
+            double c_bar = dual.getFlat(hiddenSize + j) + h_bar * o * (1 - t * t);
+
+            z_bar.putFlat(j, c_bar * g * i * (1 - i));
+            z_bar.putFlat(hiddenSize + j, c_bar * c_previous.getFlat(j) * f * (1 - f));
+            z_bar.putFlat(2 * hiddenSize + j, h_bar * t * o * (1 - o));
+            z_bar.putFlat(3 * hiddenSize + j, c_bar * i * (1 - g * g));
+            c_previous_bar.putFlat(j, c_bar * f);
+        }
+    }
+
+    private static double sigmoid(double x) {
+        return 1 / (1 + Math.exp(-x));
+    }
+}
@@ -0,0 +1,340 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Arena;
+import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.Precision;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static ru.eventflow.neural.graph.CompiledGraph.*;
+
+/**
+ * Lowers a built graph into a linear plan, s. {@link CompiledGraph}
+ * <p>
+ * Every node reachable from the root becomes a slot in topological order with an opcode, the slots of its operands
+ * and preallocated batches for its value, gradient and temporaries. The nodes themselves are not evaluated by the plan,
+ * only Variables and Placeholders are read (anew on every run), so the plan can be run many times with new values.
+ * <p>
+ * Supported are the nodes the encoder-decoder is built of: Sum, Average, Mul, Matmul, Sigmoid, Tanh, ReLU, Exp,
+ * Softmax, SoftmaxCrossEntropy, SequenceLoss, Concat, Pack and those of fused cells (BlockMatrix, FusedLSTMCell, Slice, Unpack),
+ * anything else is rejected.
+ * <p>
+ * Optionally the graph is cut into checkpointed segments, e.g. every k cells of an unrolled encoder. A segment is
+ * everything (but Variables and Placeholders) its checkpoints depend on, minus the earlier segments. Only values read
+ * outside of their segment are kept, the rest of the segments share the same batches and are recomputed from the kept
+ * ones during the backward pass, so the memory grows with the length of a segment instead of the whole graph.
+ */
+public final class GraphCompiler {
+
+    private GraphCompiler() {
+    }
+
+    /**
+     * batches are allocated in the current precision of the thread, outside of any arena
+     */
+    public static CompiledGraph compile(Node root) {
+        return compile(root, Collections.emptyList());
+    }
+
+    /**
+     * @param checkpoints -- the outputs of every segment in topological order, e.g. the hidden state and the memory
+     *                    of every k-th cell of an encoder
+     */
+    public static CompiledGraph compile(Node root, List<? extends List<? extends Node>> checkpoints) {
+        return Arena.outside(() -> lower(root, checkpoints));
+    }
+
+    private static CompiledGraph lower(Node root, List<? extends List<? extends Node>> checkpoints) {
+        List<Node> order = new GraphExecutor(root).getNodes();
+        int length = order.size();
+
+        Node[] nodes = order.toArray(new Node[length]);
+        int[] opcodes = new int[length];
+        int[][] operands = new int[length][];
+        int[][] shapes = new int[length][];
+        boolean[] needsGradient = new boolean[length];
+
+        Map<Node, Integer> slots = new IdentityHashMap<>();
+        for (int i = 0; i < length; i++) {
+            Node node = nodes[i];
+            slots.put(node, i);
+
+            List<Node> children = node.getChildren();
+            operands[i] = new int[children.size()];
+            for (int j = 0; j < operands[i].length; j++) {
+                operands[i][j] = slots.get(children.get(j));
+            }
+
+            opcodes[i] = opcode(node);
+            shapes[i] = shape(node, opcodes[i], operands[i], shapes);
+            needsGradient[i] = node.requiresGrad();
+        }
+
+        int[] segments = segments(checkpoints, slots, opcodes, length);
+        int[][] ranges = ranges(segments, checkpoints.size());
+
+        // a value read by another segment, by the rest of the graph or by the caller is kept
+        boolean[] transients = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            transients[i] = segments[i] >= 0;
+        }
+        for (int i = 0; i < length; i++) {
+            for (int operand : operands[i]) {
+                if (segments[operand] != segments[i]) {
+                    transients[operand] = false;
+                }
+            }
+        }
+        transients[length - 1] = false;
+        for (List<? extends Node> outputs : checkpoints) {
+            for (Node node : outputs) {
+                transients[slots.get(node)] = false;
+            }
+        }
+
+        // the transients of a segment take the batches of the same shape left by the previous segment
+        Map<String, List<Batch>> valuePool = new HashMap<>();
+        Map<String, List<Batch>> gradientPool = new HashMap<>();
+        Map<String, Batch> temporaries = new HashMap<>(); // used within a single step only
+        Map<String, Integer> taken = new HashMap<>();
+        int segment = -1;
+
+        Batch[] values = new Batch[length];
+        Batch[] gradients = new Batch[length];
+        Batch[][] scratch = new Batch[length][];
+        for (int i = 0; i < length; i++) {
+            int opcode = opcodes[i];
+            int[] shape = shapes[i];
+            if (segments[i] != segment && segments[i] >= 0) {
+                segment = segments[i];
+                taken.clear();
+            }
+            if (transients[i]) {
+                String key = Arrays.toString(shape);
+                values[i] = take(valuePool, "v" + key, taken, shape);
+                if (needsGradient[i]) {
+                    gradients[i] = take(gradientPool, "g" + key, taken, shape);
+                }
+            } else {
+                if (opcode != VARIABLE && opcode != PLACEHOLDER) {
+                    values[i] = new Batch(shape);
+                }
+                if (needsGradient[i]) {
+                    gradients[i] = new Batch(shape);
+                }
+            }
+            if (opcode == MUL || opcode == AVERAGE || opcode == SIGMOID || opcode == TANH || opcode == RELU || opcode == EXP) {
+                scratch[i] = new Batch[]{temporaries.computeIfAbsent(Arrays.toString(shape), key -> new Batch(shape))};
+            } else if (opcode == SOFTMAX_CROSS_ENTROPY || opcode == SEQUENCE_LOSS) {
+                scratch[i] = new Batch[operands[i].length];
+                for (int t = 0; t < operands[i].length; t++) {
+                    scratch[i][t] = new Batch(shapes[operands[i][t]]);
+                }
+            } else if (opcode == FUSED_LSTM) {
+                int hiddenSize = shapes[operands[i][3]][1];
+                int[] xh = {1, shapes[operands[i][0]][2], 1}; // [x; h] or h of a projected input
+                int[] gates = {1, 4 * hiddenSize, 1};
+                int[] state = {1, hiddenSize, 1};
+                // kept till the backward pass, unless recomputed along with the segment
+                Batch[] kept = new Batch[3];
+                int[][] keptShapes = {xh, gates, state};
+                for (int k = 0; k < kept.length; k++) {
+                    kept[k] = transients[i]
+                            ? take(valuePool, "lstm" + k + Arrays.toString(keptShapes[k]), taken, keptShapes[k])
+                            : new Batch(keptShapes[k]);
+                }
+                scratch[i] = new Batch[]{kept[0], kept[1], kept[2],
+                        temporaries.computeIfAbsent("z_bar" + Arrays.toString(gates), key -> new Batch(gates)),
+                        temporaries.computeIfAbsent("xh_bar" + Arrays.toString(xh), key -> new Batch(xh)),
+                        temporaries.computeIfAbsent("c_bar" + Arrays.toString(state), key -> new Batch(state))};
+            }
+        }
+
+        return new CompiledGraph(nodes, opcodes, operands, needsGradient, values, gradients, scratch, slots,
+                segments, ranges, transients, Precision.current());
+    }
+
+    /**
+     * @return the segment of every slot, -1 outside of segments
+     */
+    private static int[] segments(List<? extends List<? extends Node>> checkpoints, Map<Node, Integer> slots,
+                                  int[] opcodes, int length) {
+        int[] segments = new int[length];
+        Arrays.fill(segments, -1);
+        for (int s = 0; s < checkpoints.size(); s++) {
+            Deque<Node> stack = new ArrayDeque<>();
+            for (Node node : checkpoints.get(s)) {
+                if (!slots.containsKey(node)) {
+                    throw new IllegalArgumentException("The checkpoint is not part of the graph");
+                }
+                stack.push(node);
+            }
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                int slot = slots.get(node);
+                if (segments[slot] >= 0 || opcodes[slot] == VARIABLE || opcodes[slot] == PLACEHOLDER) {
+                    continue;
+                }
+                segments[slot] = s;
+                for (Node child : node.getChildren()) {
+                    stack.push(child);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @return the first and the last slot of every segment, null for an empty one. A node placed by the topological
+     * order before the end of the previous segment (e.g. the input projection of a late timestep, pulled in early
+     * by its matrix) is left out of its segment and kept like the nodes outside of segments.
+     */
+    private static int[][] ranges(int[] segments, int count) {
+        List<List<Integer>> members = new ArrayList<>(count);
+        for (int s = 0; s < count; s++) {
+            members.add(new ArrayList<>());
+        }
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] >= 0) {
+                members.get(segments[i]).add(i);
+            }
+        }
+
+        int[][] ranges = new int[count][];
+        int previousEnd = -1;
+        for (int s = 0; s < count; s++) {
+            for (int i : members.get(s)) {
+                if (i <= previousEnd) {
+                    segments[i] = -1;
+                } else if (ranges[s] == null) {
+                    ranges[s] = new int[]{i, i};
+                } else {
+                    ranges[s][1] = i;
+                }
+            }
+            if (ranges[s] != null) {
+                previousEnd = ranges[s][1];
+            }
+        }
+        return ranges;
+    }
+
+    private static Batch take(Map<String, List<Batch>> pool, String key, Map<String, Integer> taken, int[] shape) {
+        List<Batch> batches = pool.computeIfAbsent(key, k -> new ArrayList<>());
+        int index = taken.merge(key, 1, Integer::sum) - 1;
+        if (index == batches.size()) {
+            batches.add(new Batch(shape));
+        }
+        return batches.get(index);
+    }
+
+    private static int opcode(Node node) {
+        if (node instanceof Variable) {
+            return VARIABLE;
+        } else if (node instanceof Placeholder) {
+            return PLACEHOLDER;
+        } else if (node instanceof Sum) {
+            return SUM;
+        } else if (node instanceof Average) {
+            return AVERAGE;
+        } else if (node instanceof Mul) {
+            return MUL;
+        } else if (node instanceof Matmul) {
+            return ((Matmul) node).transposeMatrix ? MATMUL_TRANSPOSED : MATMUL;
+        } else if (node instanceof Sigmoid) {
+            return SIGMOID;
+        } else if (node instanceof Tanh) {
+            return TANH;
+        } else if (node instanceof ReLU) {
+            return RELU;
+        } else if (node instanceof Exp) {
+            return EXP;
+        } else if (node instanceof Softmax) {
+            return SOFTMAX;
+        } else if (node instanceof SoftmaxCrossEntropy) {
+            return SOFTMAX_CROSS_ENTROPY;
+        } else if (node instanceof SequenceLoss) {
+            return SEQUENCE_LOSS;
+        } else if (node instanceof Concat) {
+            return CONCAT;
+        } else if (node instanceof Pack) {
+            return PACK;
+        } else if (node instanceof BlockMatrix) {
+            return BLOCK_MATRIX;
+        } else if (node instanceof FusedLSTMCell) {
+            return FUSED_LSTM;
+        } else if (node instanceof Slice) {
+            return SLICE;
+        } else if (node instanceof Unpack) {
+            return UNPACK;
+        }
+        throw new IllegalArgumentException(node.getClass().getSimpleName() + " cannot be compiled");
+    }
+
+    /**
+     * the shape the node actually produces (declared shapes of some nodes are only approximate)
+     */
+    private static int[] shape(Node node, int opcode, int[] operands, int[][] shapes) {
+        switch (opcode) {
+            case VARIABLE:
+            case PLACEHOLDER:
+                return node.shape();
+            case MATMUL:
+            case MATMUL_TRANSPOSED: {
+                int[] matrix = shapes[operands[0]];
+                int[] vector = shapes[operands[1]];
+                int rows = opcode == MATMUL ? matrix[1] : matrix[2];
+                return new int[]{Math.max(matrix[0], vector[0]), rows, vector[2]};
+            }
+            case SUM:
+            case AVERAGE: {
+                // operands of a single slice are broadcast
+                int size = 1;
+                for (int operand : operands) {
+                    size = Math.max(size, shapes[operand][0]);
+                }
+                return new int[]{size, shapes[operands[0]][1], shapes[operands[0]][2]};
+            }
+            case SOFTMAX_CROSS_ENTROPY:
+            case SEQUENCE_LOSS:
+                return new int[]{1, 1, 1};
+            case CONCAT: {
+                int rows = 0;
+                for (int operand : operands) {
+                    rows += shapes[operand][1];
+                }
+                return new int[]{shapes[operands[0]][0], rows, 1};
+            }
+            case PACK:
+                return new int[]{shapes[operands[0]][0], shapes[operands[0]][1], operands.length};
+            case BLOCK_MATRIX: {
+                int blockColumns = ((BlockMatrix) node).blockColumns;
+                int rows = 0;
+                for (int r = 0; r < operands.length; r += blockColumns) {
+                    rows += shapes[operands[r]][1];
+                }
+                int columns = 0;
+                for (int k = 0; k < blockColumns; k++) {
+                    columns += shapes[operands[k]][2];
+                }
+                return new int[]{1, rows, columns};
+            }
+            case FUSED_LSTM:
+                return new int[]{1, 2 * shapes[operands[3]][1], 1};
+            case SLICE:
+                return new int[]{1, node.getRows(), shapes[operands[0]][2]};
+            case UNPACK:
+                return new int[]{1, shapes[operands[0]][1], 1};
+            default:
+                return shapes[operands[0]];
+        }
+    }
+}
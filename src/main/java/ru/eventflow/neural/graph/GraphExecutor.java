@@ -0,0 +1,188 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.Precision;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Evaluates a graph without recursion.
+ * <p>
+ * The nodes reachable from the root are sorted topologically once (children before parents), then the forward pass
+ * is a loop over this array and the backward pass a loop over it in reverse. A node is visited in the backward pass
+ * after all of its parents, so its dual value is complete by then and is handed to it once, s. {@link Node#setDualValue}.
+ * <p>
+ * Only parents inside the graph contribute, nodes hanging off it (e.g. predictions which are not part of the loss)
+ * are ignored. Nothing is propagated into nodes not depending on any Variable, s. {@link Node#requiresGrad()}
+ * (Placeholders, constant branches, gold values of losses), they do not even keep partials for it.
+ * The graph must not change between the passes.
+ * <p>
+ * Nodes of the same depth do not depend on each other (e.g. the four gates of an LSTM cell), so the forward pass
+ * may evaluate them concurrently, s. {@link #forward(ForkJoinPool, long)}.
+ */
+public class GraphExecutor {
+
+    private final Node root;
+    private final Node[] nodes;
+    private final int[][] children; // positions of the children of each node in the array above, -1 for constants
+    private final int[][] levels; // positions of the nodes by the length of the longest path to a leaf
+    private final long[] work; // estimated multiplications of each node
+
+    public GraphExecutor(Node root) {
+        this.root = root;
+
+        // iterative depth-first search, nodes are compared by identity
+        Map<Node, Integer> positions = new IdentityHashMap<>();
+        List<Node> order = new ArrayList<>();
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> path = new ArrayDeque<>();
+        Deque<Iterator<Node>> iterators = new ArrayDeque<>();
+
+        visited.add(root);
+        path.push(root);
+        iterators.push(root.getChildren().iterator());
+        while (!path.isEmpty()) {
+            Iterator<Node> iterator = iterators.peek();
+            if (iterator.hasNext()) {
+                Node child = iterator.next();
+                if (visited.add(child)) {
+                    path.push(child);
+                    iterators.push(child.getChildren().iterator());
+                }
+            } else {
+                iterators.pop();
+                Node node = path.pop();
+                positions.put(node, order.size());
+                order.add(node);
+            }
+        }
+
+        this.nodes = order.toArray(new Node[order.size()]);
+        this.children = new int[nodes.length][];
+        this.work = new long[nodes.length];
+        int[][] operands = new int[nodes.length][]; // constants included
+        for (int i = 0; i < nodes.length; i++) {
+            List<Node> nodeChildren = nodes[i].getChildren();
+            children[i] = new int[nodeChildren.size()];
+            operands[i] = new int[nodeChildren.size()];
+            for (int j = 0; j < children[i].length; j++) {
+                Node child = nodeChildren.get(j);
+                operands[i][j] = positions.get(child);
+                children[i][j] = child.requiresGrad() ? operands[i][j] : -1;
+            }
+            work[i] = work(nodes[i]);
+        }
+        this.levels = Levels.levels(nodes.length, i -> operands[i]);
+    }
+
+    /**
+     * @return the estimated multiplications of evaluating the node, s. {@link #forward(ForkJoinPool, long)}
+     */
+    static long work(Node node) {
+        long elements = (long) node.getSize() * node.getRows() * node.getColumns();
+        if (node instanceof Matmul) {
+            Matmul matmul = (Matmul) node;
+            int[] matrix = matmul.matrix.shape();
+            return elements * (matmul.transposeMatrix ? matrix[1] : matrix[2]);
+        }
+        return elements;
+    }
+
+    /**
+     * @return all nodes of the graph, children before parents, the root is the last one
+     */
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(Arrays.asList(nodes));
+    }
+
+    /**
+     * clears the values of all nodes, s. {@link Node#reset()}
+     */
+    public void reset() {
+        for (Node node : nodes) {
+            node.reset();
+        }
+    }
+
+    /**
+     * @return the value of the root
+     */
+    public Batch forward() {
+        // every child is already evaluated when its parent asks for it
+        for (Node node : nodes) {
+            node.getValue();
+        }
+        return root.getValue();
+    }
+
+    /**
+     * the forward pass level by level, the nodes of a level with at least the threshold of work are evaluated
+     * on the pool, the rest inline by the calling thread
+     * <p>
+     * The precision and the no-grad mode of the calling thread are passed on to the pool, its arena is not
+     * (values computed on the pool are allocated on the heap).
+     *
+     * @param threshold -- estimated multiplications (e.g. rows x columns of a matrix times a vector)
+     * @return the value of the root
+     */
+    public Batch forward(ForkJoinPool pool, long threshold) {
+        Precision precision = Precision.current();
+        boolean recording = NoGrad.isRecording();
+        for (int[] level : levels) {
+            Levels.run(level, work, threshold, pool, i -> nodes[i].getValue(),
+                    i -> evaluate(nodes[i], precision, recording));
+        }
+        return root.getValue();
+    }
+
+    private static void evaluate(Node node, Precision precision, boolean recording) {
+        Precision previous = Precision.set(precision);
+        try (NoGrad scope = recording ? null : NoGrad.enter()) {
+            node.getValue();
+        } finally {
+            Precision.set(previous);
+        }
+    }
+
+    /**
+     * the forward pass in a {@link NoGrad} scope, the nodes store no partials and no backward pass may follow
+     *
+     * @return the value of the root
+     */
+    public Batch predict() {
+        try (NoGrad scope = NoGrad.enter()) {
+            return forward();
+        }
+    }
+
+    /**
+     * computes the dual values of all nodes w.r.t. the root, the forward pass must have been run
+     */
+    public void backward() {
+        Batch[] duals = new Batch[nodes.length];
+        duals[nodes.length - 1] = Batch.ones(root.shape());
+
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            Node node = nodes[i];
+            node.setDualValue(duals[i]);
+            duals[i] = null;
+
+            // a child's dual is complete once all of its parents (later in the order) are done; the first
+            // contribution it receives is reused as its buffer, s. Node#applyChainRule(int)
+            for (int j = 0; j < children[i].length; j++) {
+                int position = children[i][j];
+                if (position < 0) {
+                    continue;
+                }
+                Batch contribution = node.applyChainRule(j);
+                if (duals[position] == null) {
+                    duals[position] = contribution;
+                } else {
+                    duals[position].addInPlace(contribution);
+                }
+            }
+        }
+    }
+
+}
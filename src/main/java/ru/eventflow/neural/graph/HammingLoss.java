@@ -57,17 +57,19 @@ public class HammingLoss extends BaseNode {
 //        m_hat.print("m_hat");
 
         int batchSize = y.getSize();
-        Batch partial = new Batch(y.shape());
+        boolean recording = needsPartial(position(y_hat));
+        Batch partial = recording ? new Batch(y.shape()) : null;
 
         // this regularization is meant to prevent embedding vectors to become too small to avoid getting stuck in an all-zero local minimum in the linkage layer
         double regularizationTerm;
         double regularizationDerivative;
         if (parameters != null) {
             Variable embeddingParameters = parameters.get(Parameters.Type.EMBEDDING, "e");
-            double[] values = embeddingParameters.getValue().get(0).getColumnPackedCopy();
-            if (values.length != 0) {
+            Batch values = embeddingParameters.getValue();
+            if (values.length() != 0) {
                 double dot = 0.0;
-                for (double d : values) {
+                for (int n = 0; n < values.length(); n++) {
+                    double d = values.getFlat(n);
                     dot += d * d;
                 }
                 regularizationTerm = dot;
@@ -88,20 +90,21 @@ public class HammingLoss extends BaseNode {
         for (int j = 0; j < batchSize; j++) {
             for (int i = 0; i < vectorSize; i++) {
                 for (int k = 0; k < y.getColumns(); k++) {
-                    int[] idx = new int[]{j, i, k};
-                    double y_i = m.getDouble(idx);
-                    double yhat_i = m_hat.getDouble(idx);
+                    double y_i = m.get(j, i, k);
+                    double yhat_i = m_hat.get(j, i, k);
 
                     loss += y_i * (1 - yhat_i) + (1 - y_i) * yhat_i;
 
-                    double dd = 2 * (1 - y_i) / batchSize + regularizationDerivative;
-                    partial.put(idx, dd);
+                    if (recording) {
+                        double dd = 2 * (1 - y_i) / batchSize + regularizationDerivative;
+                        partial.put(j, i, k, dd);
+                    }
                 }
             }
         }
         loss = loss / vectorSize / y.getColumns() / batchSize + beta / regularizationTerm;
 
-        partials.put(y_hat, partial);
+        partials[position(y_hat)] = partial;
 
         value = Batch.scalar(loss);
         return value;
@@ -111,10 +114,10 @@ public class HammingLoss extends BaseNode {
      * short-circuiting here a little bit, since we know that the dual is scalar
      */
     @Override
-    public Batch applyChainRule(Node child) {
+    public Batch applyChainRule(int position) {
         Batch dual = getDualValue();
-        Batch partial = partials.get(child);
-        return partial.times(dual.get(new int[]{0, 0, 0}));
+        Batch partial = partial(position);
+        return partial.times(dual.get(0, 0, 0));
     }
 
 }
@@ -0,0 +1,82 @@
+package ru.eventflow.neural.graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Level-parallel evaluation shared by {@link GraphExecutor} and {@link CompiledGraph}: the nodes (or slots) of a graph
+ * in topological order are bucketed by the length of the longest path to a leaf, nodes of the same level do not
+ * depend on each other.
+ */
+final class Levels {
+
+    private Levels() {
+    }
+
+    /**
+     * @param n        -- the number of nodes, in topological order
+     * @param operands -- the positions of the operands of a node, all of them before the node
+     * @return the positions of the nodes by level, in topological order within a level
+     */
+    static int[][] levels(int n, IntFunction<int[]> operands) {
+        int[] depths = new int[n];
+        int maxDepth = 0;
+        for (int i = 0; i < n; i++) {
+            for (int operand : operands.apply(i)) {
+                depths[i] = Math.max(depths[i], depths[operand] + 1);
+            }
+            maxDepth = Math.max(maxDepth, depths[i]);
+        }
+
+        // counting sort by depth
+        int[] counts = new int[maxDepth + 1];
+        for (int depth : depths) {
+            counts[depth]++;
+        }
+        int[][] levels = new int[maxDepth + 1][];
+        for (int depth = 0; depth <= maxDepth; depth++) {
+            levels[depth] = new int[counts[depth]];
+            counts[depth] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            levels[depths[i]][counts[depths[i]]++] = i;
+        }
+        return levels;
+    }
+
+    /**
+     * Runs the nodes of a level: those with at least the threshold of work on the pool, the rest inline by the calling
+     * thread. A single large node is not worth a hand-off and runs inline as well.
+     *
+     * @param inline -- evaluates a node on the calling thread
+     * @param onPool -- evaluates a node on a thread of the pool, i.e. carries over the state of the calling thread
+     */
+    static void run(int[] level, long[] work, long threshold, ForkJoinPool pool, IntConsumer inline, IntConsumer onPool) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i : level) {
+            if (work[i] >= threshold) {
+                tasks.add(ForkJoinTask.adapt(() -> onPool.accept(i)));
+            }
+        }
+        boolean fork = tasks.size() > 1;
+        if (fork) {
+            for (ForkJoinTask<?> task : tasks) {
+                pool.execute(task);
+            }
+        }
+        for (int i : level) {
+            if (work[i] < threshold || !fork) {
+                inline.accept(i);
+            }
+        }
+        if (fork) {
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+}
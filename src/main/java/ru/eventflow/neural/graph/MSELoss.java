@@ -40,26 +40,30 @@ public class MSELoss extends BaseNode {
         Batch m_hat = y_hat.getValue();
 
         int batchSize = y.getSize();
-        Batch partial = new Batch(y.shape());
+        boolean recording = needsPartial(position(y_hat));
+        Batch partial = recording ? new Batch(y.shape()) : null;
 
         // result is an average over all batch entries
         double loss = 0;
         for (int j = 0; j < batchSize; j++) {
             for (int i = 0; i < vectorSize; i++) {
-                int[] idx = new int[]{j, i, 0};
+                double y_i = m.get(j, i, 0);
+                double yhat_i = m_hat.get(j, i, 0);
 
-                loss += (m.getDouble(idx) - m_hat.getDouble(idx)) * (m.getDouble(idx) - m_hat.getDouble(idx));
+                loss += (y_i - yhat_i) * (y_i - yhat_i);
 
-                double ddy_i = 2 * (m_hat.getDouble(idx) * m_hat.getDouble(idx) - m.getDouble(idx) * m_hat.getDouble(idx)) / vectorSize;
-                partial.put(idx, ddy_i);
+                if (recording) {
+                    double ddy_i = 2 * (yhat_i * yhat_i - y_i * yhat_i) / vectorSize;
+                    partial.put(j, i, 0, ddy_i);
+                }
             }
         }
         loss = loss / vectorSize / batchSize;
 
-        partials.put(y_hat, partial);
+        partials[position(y_hat)] = partial;
 
         value = Batch.oneVector(1);
-        value.put(new int[]{0, 0, 0}, loss);
+        value.put(0, 0, 0, loss);
         return value;
     }
 
@@ -1,36 +1,43 @@
 package ru.eventflow.neural.graph;
 
-import Jama.Matrix;
 import ru.eventflow.neural.Batch;
 
 /**
  * Wa = b
  * <p>
- * A matrix times a vector
+ * A matrix times a vector (or a matrix)
  * <p>
- * An example for a non-square matrix
+ * A matrix of a single slice may multiply a minibatch of vectors of shape [B, n, 1], the whole minibatch is then
+ * a single matrix-matrix product.
  * <p>
- * W = [1, 2, 3]
- * a = [1, 3, 1]
- * [1, 2, 3] x [1, 3, 1] -> [1, 2, 1]
+ * No Jacobians are stored, the backward pass computes vector-Jacobian products directly:
  * <p>
- * db/da = [1, 3, 2]
- * db/dW = [2, 3, 2]
+ * W_bar = b_bar x a^T
+ * a_bar = W^T x b_bar
  * <p>
- * b_bar = [1, 2, 1]
+ * and for the transposed matrix (W^T a = b):
  * <p>
- * a_bar = [1, 3, 1]
- * W_bar = [1, 2, 3]
+ * W_bar = a x b_bar^T
+ * a_bar = W x b_bar
  */
 public class Matmul extends BaseNode {
 
-    private Node matrix;
-    private Node vector;
+    Node matrix;
+    Node vector;
+    boolean transposeMatrix;
 
     public Matmul(int[] shape, Node matrix, Node vector) {
+        this(shape, matrix, vector, false);
+    }
+
+    /**
+     * @param transposeMatrix -- multiply by the transpose of the matrix without materializing it (W^T a = b)
+     */
+    public Matmul(int[] shape, Node matrix, Node vector, boolean transposeMatrix) {
         super(shape, matrix, vector);
         this.matrix = matrix;
         this.vector = vector;
+        this.transposeMatrix = transposeMatrix;
     }
 
     @Override
@@ -39,37 +46,27 @@ public class Matmul extends BaseNode {
             return value;
         }
 
-        // gradients
-        Batch dbda = new Batch(new int[]{1, matrix.getColumns(), matrix.getRows()}); // [1, 3, 2]
-        Batch dbdW = new Batch(new int[]{matrix.getRows(), matrix.getColumns(), matrix.getRows()}); // [2, 3, 2]
-        for (int i = 0; i < matrix.getRows(); i++) { // for each component of an output vector...
-            for (int j = 0; j < matrix.getColumns(); j++) { // ...compute a matrix of partial derivatives of this vector component w.r.t. each element of an input matrix
-                dbdW.put(new int[]{i, j, i}, vector.getValue().get(new int[]{0, j, 0}));
-                dbda.put(new int[]{0, j, i}, matrix.getValue().getDouble(new int[]{0, i, j}));
-            }
-        }
-        partials.put(matrix, dbdW);
-        partials.put(vector, dbda);
-
-        value = matrix.getValue().times(vector.getValue());
+        Batch m = matrix.getValue();
+        Batch v = vector.getValue();
+        value = transposeMatrix ? m.transposeTimes(v) : m.times(v);
         return value;
     }
 
     @Override
-    public Batch applyChainRule(Node child) {
+    public Batch applyChainRule(int position) {
         Batch dual = getDualValue();
-        Batch partial = partials.get(child);
+        Batch m = matrix.getValue();
+        Batch v = vector.getValue();
 
-        if (partial.getSize() != 1) { // partial is a rank three tensor
-            Batch result = new Batch(new int[]{1, partial.getSize(), partial.getRows()});
-            for (int i = 0; i < partial.getSize(); i++) {
-                Matrix v_i = partial.get(i).times(dual.get(0));
-                result.get(0).setMatrix(i, i, 0, partial.getRows() - 1, v_i.transpose());
-            }
-            return result;
-        } else { // partial is a vector
-            return partial.times(dual);
+        // a matrix shared by a minibatch of vectors gets the sum over the minibatch, s. Batch#timesInto
+        if (position == 0) {
+            Batch left = transposeMatrix ? v : dual;
+            Batch right = transposeMatrix ? dual : v;
+            Batch result = new Batch(m.getSize(), m.getRows(), m.getColumns(), left.getPrecision());
+            return left.timesInto(false, right, true, result, false);
+        } else {
+            return transposeMatrix ? m.times(dual) : m.transposeTimes(dual);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -32,17 +32,21 @@ public class Mul extends BaseNode {
         Batch m1 = left.getValue();
         Batch m2 = right.getValue();
 
-        partials.put(left, m2);
-        partials.put(right, m1);
+        if (needsPartial(0)) {
+            partials[0] = m2;
+        }
+        if (needsPartial(1)) {
+            partials[1] = m1;
+        }
 
         value = m1.mul(m2);
         return value;
     }
 
     @Override
-    public Batch applyChainRule(Node child) {
+    public Batch applyChainRule(int position) {
         Batch dual = getDualValue();
-        Batch partial = partials.get(child);
+        Batch partial = partial(position);
         return partial.mul(dual);
     }
 }
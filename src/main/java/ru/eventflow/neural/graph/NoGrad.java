@@ -0,0 +1,42 @@
+package ru.eventflow.neural.graph;
+
+/**
+ * A thread-confined inference scope.
+ * <p>
+ * While it is entered, nodes evaluated by the thread compute their values only and store no partials, so no backward
+ * pass may follow for them (values are cached, a node evaluated inside stays without partials after the scope is closed).
+ * <pre>
+ * try (NoGrad scope = NoGrad.enter()) {
+ *     // forward passes only
+ * }
+ * </pre>
+ * Scopes may be nested, closing one restores the mode it was entered from.
+ */
+public final class NoGrad implements AutoCloseable {
+
+    private static final ThreadLocal<Boolean> ACTIVE = ThreadLocal.withInitial(() -> false);
+
+    private final boolean previous;
+
+    private NoGrad(boolean previous) {
+        this.previous = previous;
+    }
+
+    public static NoGrad enter() {
+        NoGrad scope = new NoGrad(ACTIVE.get());
+        ACTIVE.set(true);
+        return scope;
+    }
+
+    /**
+     * @return true if partials of the nodes evaluated by the current thread are needed
+     */
+    public static boolean isRecording() {
+        return !ACTIVE.get();
+    }
+
+    @Override
+    public void close() {
+        ACTIVE.set(previous);
+    }
+}
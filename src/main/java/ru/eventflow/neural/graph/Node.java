@@ -3,10 +3,11 @@ package ru.eventflow.neural.graph;
 import ru.eventflow.neural.Batch;
 
 import java.util.List;
-import java.util.Map;
 
 public interface Node {
 
+    int getId();
+
     List<Node> getChildren();
 
     List<Node> getParents();
@@ -17,13 +18,31 @@ public interface Node {
 
     Batch getDualValue();
 
-    Map<Node, Batch> getPartials();
+    /**
+     * Sets the complete dual value, so that it is not collected from the parents, s. {@link GraphExecutor}
+     */
+    void setDualValue(Batch dualValue);
+
+    /**
+     * by the position of the child
+     */
+    Batch[] getPartials();
 
     void reset();
 
     int[] shape();
 
-    Batch applyChainRule(Node child);
+    /**
+     * @return true for Variables and the nodes depending on them, only these get dual values
+     */
+    boolean requiresGrad();
+
+    /**
+     * The contribution of this node to the dual value of the child at the position, a child occurring more than once
+     * gets a contribution per position. The returned batch is owned by the caller, i.e. it must not be shared with
+     * the node's own state, so that it can be accumulated into in place.
+     */
+    Batch applyChainRule(int position);
 
     int getSize();
 
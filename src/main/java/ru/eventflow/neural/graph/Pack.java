@@ -1,26 +1,22 @@
 package ru.eventflow.neural.graph;
 
-import Jama.Matrix;
 import ru.eventflow.neural.Batch;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
- * Takes a list of vectors and packs them in a matrix of column vectors
+ * Takes a list of vectors and packs them in a matrix of column vectors, a minibatch of vectors of shape [B, n, 1]
+ * into B matrices
  */
 public class Pack extends BaseNode {
 
-    private Map<Node, Integer> indices = new HashMap<>();
-
     public Pack(int[] shape, List<Node> children) {
         super(shape, children.toArray(new Node[0]));
     }
 
     public Pack(int[] shape, Node... children) {
         super(shape, children);
-        this.shape = new int[]{1, children[0].getRows(), children.length};
+        this.shape = new int[]{children[0].getSize(), children[0].getRows(), children.length};
     }
 
     @Override
@@ -29,12 +25,15 @@ public class Pack extends BaseNode {
             return value;
         }
 
-        Batch value = new Batch(shape);
+        value = new Batch(shape);
         for (int i = 0; i < children.size(); i++) {
             Node vector = children.get(i);
-            Matrix m = vector.getValue().get(0).getMatrix(0, vector.getRows() - 1, 0, 0);
-            value.get(0).setMatrix(0, vector.getRows() - 1, i, i, m);
-            indices.put(vector, i);
+            Batch v = vector.getValue();
+            for (int k = 0; k < v.getSize(); k++) {
+                for (int j = 0; j < vector.getRows(); j++) {
+                    value.put(k, j, i, v.get(k, j, 0));
+                }
+            }
         }
 
         return value;
@@ -44,11 +43,15 @@ public class Pack extends BaseNode {
      * it does not compute anything, it simply returns the column of the pack's dual value that corresponds to the child
      */
     @Override
-    public Batch applyChainRule(Node child) {
+    public Batch applyChainRule(int position) {
         Batch dual = getDualValue();
-        Batch result = new Batch(child.shape());
-        int i = indices.get(child);
-        result.put(0, dual.get(0).getMatrix(0, child.getRows() - 1, i, i));
+        Batch result = new Batch(children.get(position).shape());
+        int i = position;
+        for (int k = 0; k < result.getSize(); k++) {
+            for (int j = 0; j < result.getRows(); j++) {
+                result.put(k, j, 0, dual.get(k, j, i));
+            }
+        }
         return result;
     }
 }
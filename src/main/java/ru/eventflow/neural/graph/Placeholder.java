@@ -30,8 +30,8 @@ public class Placeholder extends BaseNode {
     }
 
     @Override
-    public Batch applyChainRule(Node child) {
-        return new Batch(child.shape());
+    public Batch applyChainRule(int position) {
+        return new Batch(children.get(position).shape());
     }
 
     @Override
@@ -0,0 +1,78 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The softmax cross-entropy losses of all steps of a sequence (of a minibatch of sequences) reduced in one node,
+ * instead of a loss node per step and a sum over them.
+ * <p>
+ * Takes the logits of every step, each of shape [B, n, 1], and the gold index and weight of every step and entry,
+ * produces a scalar: sum_t sum_b weight[t][b] * loss(logits_t[b], gold[t][b]), s. {@link SoftmaxCrossEntropy}.
+ * A zero weight masks the padding of an entry, the default weights average over the steps and entries.
+ */
+public class SequenceLoss extends BaseNode {
+
+    int[][] gold; // of every step and entry
+    double[][] weights;
+
+    public SequenceLoss(int[] shape, List<? extends Node> logits) {
+        super(shape, logits.toArray(new Node[0]));
+        int steps = logits.size();
+        int size = logits.get(0).getSize();
+        this.gold = new int[steps][size];
+        this.weights = new double[steps][size];
+        for (double[] step : weights) {
+            Arrays.fill(step, 1.0 / (steps * size));
+        }
+    }
+
+    /**
+     * replaces the gold indices, e.g. for the next run of a compiled graph, s. {@link CompiledGraph}
+     */
+    public void setGold(int step, int... gold) {
+        if (gold.length != this.gold[step].length) {
+            throw new IllegalArgumentException("A gold index is needed for each batch entry");
+        }
+        this.gold[step] = gold;
+    }
+
+    /**
+     * @param weights -- of the entries at the step, zero for the padding
+     */
+    public void setWeights(int step, double... weights) {
+        if (weights.length != this.weights[step].length) {
+            throw new IllegalArgumentException("A weight is needed for each batch entry");
+        }
+        this.weights[step] = weights;
+    }
+
+    @Override
+    public Batch getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        double loss = 0;
+        for (int t = 0; t < children.size(); t++) {
+            Batch z = children.get(t).getValue();
+            Batch partial = needsPartial(t) ? new Batch(z.shape()) : null;
+            loss += SoftmaxCrossEntropy.loss(z, gold[t], weights[t], partial);
+            partials[t] = partial;
+        }
+
+        value = Batch.scalar(loss);
+        return value;
+    }
+
+    /**
+     * the dual is a scalar
+     */
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch dual = getDualValue();
+        return partial(position).times(dual.get(0, 0, 0));
+    }
+}
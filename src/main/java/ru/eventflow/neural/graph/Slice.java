@@ -0,0 +1,40 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+
+/**
+ * Consecutive rows of the child, e.g. one of the states a {@link FusedLSTMCell} outputs together.
+ * <p>
+ * The dual is copied into the same rows of a zero batch of the child's shape.
+ */
+public class Slice extends BaseNode {
+
+    final Node child;
+    final int offset; // the first row
+
+    public Slice(int[] shape, Node child, int offset) {
+        super(shape, child);
+        this.child = child;
+        this.offset = offset;
+    }
+
+    @Override
+    public Batch getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        Batch in = child.getValue();
+        value = new Batch(new int[]{1, shape[1], in.getColumns()});
+        Batch.arraycopy(in, offset * in.getRowStride(), value, 0, value.length());
+        return value;
+    }
+
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch dual = getDualValue();
+        Batch result = new Batch(this.child.shape());
+        Batch.arraycopy(dual, 0, result, offset * result.getRowStride(), dual.length());
+        return result;
+    }
+}
@@ -8,11 +8,10 @@ import ru.eventflow.neural.Batch;
  * <p>
  * [k, n]    -- k n-dimensional vectors
  * <p>
- * Shape of derivative
- * <p>
- * [k, n, n] -- k n-by-n matrices
- * <p>
  * Takes k n-dimensional vectors and produces k n-dimensional vectors
+ * <p>
+ * The n-by-n Jacobian diag(y) - y y^T is never built, the backward pass uses the closed form of its product
+ * with the dual: y * (g - (g . y)). Only the output is kept.
  */
 public class Softmax extends BaseNode {
 
@@ -29,25 +28,24 @@ public class Softmax extends BaseNode {
 
     /**
      * s. http://cs231n.github.io/linear-classify/#softmax
-     *
-     * TODO apply log-sum-exp trick to avoid overflows
+     * <p>
+     * the maximum is subtracted to avoid overflows
      */
-    private static double[] softmax(double[] row) {
-        double max = row[0];
-        for (double d : row) {
-            max = Math.max(max, d);
+    static void softmax(Batch in, Batch out, int offset, int length) {
+        double max = in.getFlat(offset);
+        for (int i = 0; i < length; i++) {
+            max = Math.max(max, in.getFlat(offset + i));
         }
 
         double denominator = 0;
-        double[] values = new double[row.length];
-        for (int i = 0; i < values.length; i++) {
-            values[i] = row[i] - max;
-            denominator += Math.exp(values[i]);
+        for (int i = 0; i < length; i++) {
+            double e = Math.exp(in.getFlat(offset + i) - max);
+            out.putFlat(offset + i, e);
+            denominator += e;
         }
-        for (int i = 0; i < values.length; i++) {
-            values[i] = Math.exp(values[i]) / denominator;
+        for (int i = 0; i < length; i++) {
+            out.putFlat(offset + i, out.getFlat(offset + i) / denominator);
         }
-        return values;
     }
 
     @Override
@@ -56,29 +54,37 @@ public class Softmax extends BaseNode {
             return value;
         }
 
-        Batch partial = Batch.zeros(new int[]{batchSize, vectorSize, vectorSize});
-
         Batch in = child.getValue();
         value = Batch.manyVectors(batchSize, vectorSize);
-
         for (int batch = 0; batch < batchSize; batch++) {
-            double[] values = softmax(in.get(batch).getColumnPackedCopy());
-            for (int i = 0; i < vectorSize; i++) {
-                value.put(new int[]{batch, i, 0}, values[i]);
+            softmax(in, value, in.offset(batch), vectorSize);
+        }
+        return value;
+    }
 
-                // derivatives
-                for (int j = 0; j < vectorSize; j++) {
-                    if (i == j) {
-                        partial.put(new int[]{batch, j, j}, values[j] * (1 - values[j]));
-                    } else {
-                        partial.put(new int[]{batch, j, i}, -values[i] * values[j]);
-                    }
-                }
-            }
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch g = getDualValue();
+        Batch y = getValue();
+        Batch result = Batch.manyVectors(batchSize, vectorSize);
+        for (int batch = 0; batch < batchSize; batch++) {
+            addVectorJacobianProduct(y, g, result, y.offset(batch), vectorSize);
         }
-        partials.put(child, partial);
+        return result;
+    }
 
-        return value;
+    /**
+     * result += y * (g - (g . y)) for one vector
+     */
+    static void addVectorJacobianProduct(Batch y, Batch g, Batch result, int offset, int length) {
+        double dot = 0;
+        for (int i = 0; i < length; i++) {
+            dot += g.getFlat(offset + i) * y.getFlat(offset + i);
+        }
+        for (int i = 0; i < length; i++) {
+            int n = offset + i;
+            result.putFlat(n, result.getFlat(n) + y.getFlat(n) * (g.getFlat(n) - dot));
+        }
     }
 
 }
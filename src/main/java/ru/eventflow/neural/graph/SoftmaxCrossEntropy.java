@@ -0,0 +1,117 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+
+/**
+ * Softmax followed by the cross-entropy loss against gold class indices, averaged over the batch
+ * (or weighted, e.g. to leave out the padding of a minibatch, s. {@link #setWeights(double...)})
+ * <p>
+ * Takes unnormalized scores (logits) of shape [k, n, 1] and k gold indices, produces a scalar:
+ * <p>
+ * loss = log(sum_j exp(z_j)) - z_gold
+ * <p>
+ * The log-sum-exp subtracts the maximum, so it does not overflow, and the gradient w.r.t. the logits
+ * is simply p - onehot(gold), thus neither a Jacobian nor a one-hot vector is ever built.
+ */
+public class SoftmaxCrossEntropy extends BaseNode {
+
+    private Node logits;
+    int[] gold;
+    double[] weights; // of the batch entries, null for the average
+
+    public SoftmaxCrossEntropy(int[] shape, Node logits, int... gold) {
+        super(shape, logits);
+        if (gold.length != logits.getSize()) {
+            throw new IllegalArgumentException("A gold index is needed for each batch entry");
+        }
+        this.logits = logits;
+        this.gold = gold;
+    }
+
+    /**
+     * replaces the gold indices, e.g. for the next run of a compiled graph, s. {@link CompiledGraph}
+     */
+    public void setGold(int... gold) {
+        if (gold.length != this.gold.length) {
+            throw new IllegalArgumentException("A gold index is needed for each batch entry");
+        }
+        this.gold = gold;
+    }
+
+    /**
+     * replaces the average over the batch by a weighted sum, null restores the average
+     */
+    public void setWeights(double... weights) {
+        if (weights != null && weights.length != this.gold.length) {
+            throw new IllegalArgumentException("A weight is needed for each batch entry");
+        }
+        this.weights = weights;
+    }
+
+    @Override
+    public Batch getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        Batch z = logits.getValue();
+        Batch partial = needsPartial(0) ? new Batch(z.shape()) : null;
+        double loss = loss(z, gold, weights, partial);
+        partials[0] = partial;
+
+        value = Batch.scalar(loss);
+        return value;
+    }
+
+    /**
+     * @param weights -- of the batch entries, null for 1 / batch size each
+     * @param partial -- receives the gradient of the loss w.r.t. the logits, (p - onehot) * weight
+     * @return the weighted sum of the losses
+     */
+    static double loss(Batch z, int[] gold, double[] weights, Batch partial) {
+        int batchSize = z.getSize();
+        int vectorSize = z.getRows();
+
+        double loss = 0;
+        for (int i = 0; i < batchSize; i++) {
+            int offset = z.offset(i);
+            double weight = weights == null ? 1d / batchSize : weights[i];
+
+            double max = z.getFlat(offset);
+            for (int j = 1; j < vectorSize; j++) {
+                max = Math.max(max, z.getFlat(offset + j));
+            }
+            double sum = 0;
+            for (int j = 0; j < vectorSize; j++) {
+                double e = Math.exp(z.getFlat(offset + j) - max);
+                if (partial != null) {
+                    partial.putFlat(offset + j, e);
+                }
+                sum += e;
+            }
+            double logSumExp = max + Math.log(sum);
+            loss += weight * (logSumExp - z.getFlat(offset + gold[i]));
+
+            if (partial == null) {
+                continue;
+            }
+            // p - onehot
+            for (int j = 0; j < vectorSize; j++) {
+                partial.putFlat(offset + j, partial.getFlat(offset + j) / sum * weight);
+            }
+            partial.putFlat(offset + gold[i], partial.getFlat(offset + gold[i]) - weight);
+        }
+        return loss;
+    }
+
+    /**
+     * the dual is a scalar
+     */
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch dual = getDualValue();
+        Batch partial = partial(0);
+        return partial.times(dual.get(0, 0, 0));
+    }
+
+}
@@ -4,6 +4,13 @@ import ru.eventflow.neural.Batch;
 
 import java.util.List;
 
+/**
+ * The sum of any number of children of the same shape, children of a single slice are added to every slice
+ * of a minibatch, s. {@link Batch#addInPlace(Batch)}
+ * <p>
+ * The partials are identities, so none are kept: every child gets the dual itself, a broadcast child the sum
+ * of the dual over the minibatch.
+ */
 public class Sum extends BaseNode {
 
     public Sum(int[] shape, List<Node> children) {
@@ -22,22 +29,25 @@ public class Sum extends BaseNode {
 
         value = new Batch(shape);
         for (Node child : children) {
-            value = value.plus(child.getValue());
-            partials.put(child, Batch.ones(child.shape()));
+            value.addInPlace(child.getValue());
         }
 
         return value;
     }
 
     @Override
-    public Batch applyChainRule(Node child) {
-        Batch partial = partials.get(child);
-        Batch dual = getDualValue();
+    public Batch applyChainRule(int position) {
+        return reduce(getDualValue(), children.get(position));
+    }
 
-        if (partial.getColumns() != dual.getColumns() || partial.getRows() != dual.getRows()) {
-            throw new IllegalArgumentException("Shape mismatch");
+    /**
+     * @return a copy of the dual of the shape of the child, summed over the minibatch for a broadcast child
+     */
+    static Batch reduce(Batch dual, Node child) {
+        if (child.getSize() != dual.getSize()) {
+            return new Batch(child.shape(), dual.getPrecision()).addInPlace(dual);
         }
-        return partial.mul(dual);
+        return dual.copy();
     }
 
 }
@@ -23,8 +23,7 @@ public class Transpose extends BaseNode {
             return value;
         }
 
-        Batch value = new Batch(shape);
-        value.put(0, child.getValue().get(0).transpose());
+        value = child.getValue().transpose();
 
         return value;
     }
@@ -39,16 +38,12 @@ public class Transpose extends BaseNode {
             dualValue = Batch.ones(shape);
         } else {
             dualValue = Batch.zeros(shape);
-            for (Node parent : parents) {
-                Batch b = parent.applyChainRule(this);
-                Batch t = new Batch(shape);
+            for (Batch b : contributions(this)) {
                 // TODO ? if the parent is Matmul, we have this (probably we should have called parent.applyChainRule() with the transpose of `this`, but I kant)
-                if (t.getRows() == b.getRows() && t.getColumns() == b.getColumns()) {
-                    t.put(0, b.get(0));
-                } else {
-                    t.put(0, b.get(0).transpose());
+                if (getRows() != b.getRows() || getColumns() != b.getColumns()) {
+                    b = b.transpose();
                 }
-                dualValue = dualValue.plus(t);
+                dualValue.addInPlace(b);
             }
         }
 
@@ -56,9 +51,7 @@ public class Transpose extends BaseNode {
     }
 
     @Override
-    public Batch applyChainRule(Node child) {
-        Batch t = new Batch(child.shape());
-        t.put(0, getDualValue().get(0).transpose());
-        return t;
+    public Batch applyChainRule(int position) {
+        return getDualValue().transpose();
     }
 }
@@ -0,0 +1,54 @@
+package ru.eventflow.neural.graph;
+
+import ru.eventflow.neural.Batch;
+
+/**
+ * A column of a matrix as a vector, the inverse of {@link Pack}, e.g. the input projection of one timestep
+ * out of the projections of the whole sequence
+ */
+public class Unpack extends BaseNode {
+
+    final Node matrix;
+    final int column;
+
+    public Unpack(int[] shape, Node matrix, int column) {
+        super(shape, matrix);
+        this.matrix = matrix;
+        this.column = column;
+    }
+
+    @Override
+    public Batch getValue() {
+        if (value != null) {
+            return value;
+        }
+
+        Batch m = matrix.getValue();
+        value = new Batch(new int[]{1, m.getRows(), 1});
+        column(m, column, value);
+        return value;
+    }
+
+    /**
+     * the dual is the column of the matrix' dual
+     */
+    @Override
+    public Batch applyChainRule(int position) {
+        Batch dual = getDualValue();
+        Batch result = new Batch(matrix.shape());
+        addColumn(dual, result, column);
+        return result;
+    }
+
+    static void column(Batch matrix, int column, Batch vector) {
+        for (int j = 0; j < vector.getRows(); j++) {
+            vector.putFlat(j, matrix.get(0, j, column));
+        }
+    }
+
+    static void addColumn(Batch vector, Batch matrix, int column) {
+        for (int j = 0; j < vector.getRows(); j++) {
+            matrix.put(0, j, column, matrix.get(0, j, column) + vector.getFlat(j));
+        }
+    }
+}
@@ -54,13 +54,18 @@ public class Variable extends BaseNode implements Serializable {
         // noop
     }
 
+    @Override
+    public boolean requiresGrad() {
+        return true;
+    }
+
     public String getName() {
         return name;
     }
 
     @Override
-    public Batch applyChainRule(Node child) {
-        return new Batch(child.shape());
+    public Batch applyChainRule(int position) {
+        return new Batch(children.get(position).shape());
     }
 
 }
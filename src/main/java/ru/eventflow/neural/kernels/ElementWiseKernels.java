@@ -0,0 +1,81 @@
+package ru.eventflow.neural.kernels;
+
+/**
+ * Element-wise operations over the first {@code length} elements of flat arrays.
+ * <p>
+ * The output array may be one of the inputs, so that every operation can be done in place.
+ * Single precision overloads follow the double precision ones.
+ */
+public interface ElementWiseKernels {
+
+    /**
+     * c = a + b
+     */
+    void add(double[] a, double[] b, double[] c, int length);
+
+    /**
+     * c = a * b
+     */
+    void mul(double[] a, double[] b, double[] c, int length);
+
+    /**
+     * y += alpha * x
+     */
+    void axpy(double alpha, double[] x, double[] y, int length);
+
+    /**
+     * y = alpha * x
+     */
+    void scale(double alpha, double[] x, double[] y, int length);
+
+    /**
+     * y = 1 / (1 + exp(-x))
+     */
+    void sigmoid(double[] x, double[] y, int length);
+
+    /**
+     * d = y * (1 - y), where y is the output of the sigmoid
+     */
+    void sigmoidDerivative(double[] y, double[] d, int length);
+
+    void tanh(double[] x, double[] y, int length);
+
+    /**
+     * d = 1 - y * y, where y is the output of the tanh
+     */
+    void tanhDerivative(double[] y, double[] d, int length);
+
+    void relu(double[] x, double[] y, int length);
+
+    /**
+     * d = 1 if x > 0, else 0, where x is the input of the relu
+     */
+    void reluDerivative(double[] x, double[] d, int length);
+
+    void exp(double[] x, double[] y, int length);
+
+    // single precision
+
+    void add(float[] a, float[] b, float[] c, int length);
+
+    void mul(float[] a, float[] b, float[] c, int length);
+
+    void axpy(float alpha, float[] x, float[] y, int length);
+
+    void scale(float alpha, float[] x, float[] y, int length);
+
+    void sigmoid(float[] x, float[] y, int length);
+
+    void sigmoidDerivative(float[] y, float[] d, int length);
+
+    void tanh(float[] x, float[] y, int length);
+
+    void tanhDerivative(float[] y, float[] d, int length);
+
+    void relu(float[] x, float[] y, int length);
+
+    void reluDerivative(float[] x, float[] d, int length);
+
+    void exp(float[] x, float[] y, int length);
+
+}
@@ -0,0 +1,468 @@
+package ru.eventflow.neural.kernels;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * General matrix multiplication C = op(A) x op(B) over row-major arrays, where op(X) is either X or its transpose.
+ * <p>
+ * Shapes (after op is applied): op(A) is m-by-k, op(B) is k-by-n, C is m-by-n. The arrays are addressed with
+ * an offset and keep their natural row-major layout, so that A is stored k-by-m when it is transposed and B is stored
+ * n-by-k when it is transposed.
+ * <p>
+ * Matrix-vector products (the common case in an unrolled RNN) go to dedicated loops, small products
+ * go to a plain loop, everything else is cache-blocked: panels of op(A) and op(B) are packed into contiguous buffers
+ * and multiplied by a 4x4 register-tiled micro-kernel. Large products are split by rows of C on the fork/join pool.
+ * <p>
+ * s. Goto, van de Geijn. Anatomy of high-performance matrix multiplication. 2008
+ */
+public final class Gemm {
+
+    /**
+     * register tile
+     */
+    private static final int MR = 4;
+    private static final int NR = 4;
+
+    /**
+     * cache blocks: a packed MC x KC panel of A should stay in L2, a KC x NR sliver of B in L1
+     */
+    private static final int MC = 128;
+    private static final int KC = 256;
+    private static final int NC = 1024;
+
+    /**
+     * below this number of multiply-adds packing does not pay off
+     */
+    private static final long BLOCKING_THRESHOLD = 32 * 32 * 32;
+
+    /**
+     * above this number of multiply-adds a product is split across threads
+     */
+    private static final long PARALLEL_THRESHOLD = 1L << 21;
+
+    private static final ThreadLocal<double[]> PACKED_A = ThreadLocal.withInitial(() -> new double[MC * KC]);
+    private static final ThreadLocal<double[]> PACKED_B = ThreadLocal.withInitial(() -> new double[KC * NC]);
+
+    private Gemm() {
+    }
+
+    /**
+     * @param accumulate -- if false, C is overwritten, otherwise the product is added to C
+     */
+    public static void gemm(boolean transA, boolean transB, int m, int n, int k,
+                            double[] a, int aOffset, double[] b, int bOffset,
+                            double[] c, int cOffset, boolean accumulate) {
+        int lda = transA ? m : k;
+        int ldb = transB ? k : n;
+        if (!accumulate) {
+            for (int i = 0; i < m; i++) {
+                Arrays.fill(c, cOffset + i * n, cOffset + i * n + n, 0d);
+            }
+        }
+        if (m == 0 || n == 0 || k == 0) {
+            return;
+        }
+
+        long work = (long) m * n * k;
+        if (work >= PARALLEL_THRESHOLD && m >= 2 * MR && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            ForkJoinPool.commonPool().invoke(new RowsTask(transA, transB, 0, m, n, k, a, aOffset, lda, b, bOffset, ldb,
+                    c, cOffset, n, (int) Math.max(MR, PARALLEL_THRESHOLD / ((long) n * k))));
+        } else {
+            multiply(transA, transB, m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, n);
+        }
+    }
+
+    /**
+     * single precision, matrix-vector products get the same dedicated loops, everything else goes
+     * through the unblocked loop, which the JIT vectorizes
+     */
+    public static void gemm(boolean transA, boolean transB, int m, int n, int k,
+                            float[] a, int aOffset, float[] b, int bOffset,
+                            float[] c, int cOffset, boolean accumulate) {
+        int lda = transA ? m : k;
+        int ldb = transB ? k : n;
+        if (!accumulate) {
+            for (int i = 0; i < m; i++) {
+                Arrays.fill(c, cOffset + i * n, cOffset + i * n + n, 0f);
+            }
+        }
+        if (m == 0 || n == 0 || k == 0) {
+            return;
+        }
+        if (n == 1) {
+            gemv(transA, m, k, a, aOffset, lda, b, bOffset, transB ? 1 : ldb, c, cOffset, n);
+        } else {
+            naive(transA, transB, m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, n);
+        }
+    }
+
+    /**
+     * C += op(A) x op(B) for a (sub)range of rows, serially
+     */
+    private static void multiply(boolean transA, boolean transB, int m, int n, int k,
+                                 double[] a, int aOffset, int lda, double[] b, int bOffset, int ldb,
+                                 double[] c, int cOffset, int ldc) {
+        if (n == 1) {
+            // op(B) is a contiguous vector whether it is transposed or not
+            gemv(transA, m, k, a, aOffset, lda, b, bOffset, transB ? 1 : ldb, c, cOffset, ldc);
+        } else if ((long) m * n * k < BLOCKING_THRESHOLD) {
+            naive(transA, transB, m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc);
+        } else {
+            blocked(transA, transB, m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc);
+        }
+    }
+
+    /**
+     * y += op(A) x, the vector has a stride, the result is a column of C
+     */
+    private static void gemv(boolean transA, int m, int k, double[] a, int aOffset, int lda,
+                             double[] x, int xOffset, int incx, double[] y, int yOffset, int incy) {
+        if (!transA) {
+            // a dot product per row, four independent accumulators
+            for (int i = 0; i < m; i++) {
+                int row = aOffset + i * lda;
+                double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                int p = 0;
+                if (incx == 1) {
+                    for (; p + 3 < k; p += 4) {
+                        s0 += a[row + p] * x[xOffset + p];
+                        s1 += a[row + p + 1] * x[xOffset + p + 1];
+                        s2 += a[row + p + 2] * x[xOffset + p + 2];
+                        s3 += a[row + p + 3] * x[xOffset + p + 3];
+                    }
+                }
+                for (; p < k; p++) {
+                    s0 += a[row + p] * x[xOffset + p * incx];
+                }
+                y[yOffset + i * incy] += (s0 + s1) + (s2 + s3);
+            }
+        } else {
+            // A is stored k-by-m: accumulate scaled rows of the storage
+            for (int p = 0; p < k; p++) {
+                double xp = x[xOffset + p * incx];
+                if (xp == 0) {
+                    continue;
+                }
+                int row = aOffset + p * lda;
+                if (incy == 1) {
+                    for (int i = 0; i < m; i++) {
+                        y[yOffset + i] += a[row + i] * xp;
+                    }
+                } else {
+                    for (int i = 0; i < m; i++) {
+                        y[yOffset + i * incy] += a[row + i] * xp;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void naive(boolean transA, boolean transB, int m, int n, int k,
+                              double[] a, int aOffset, int lda, double[] b, int bOffset, int ldb,
+                              double[] c, int cOffset, int ldc) {
+        for (int i = 0; i < m; i++) {
+            int cRow = cOffset + i * ldc;
+            for (int p = 0; p < k; p++) {
+                double v = transA ? a[aOffset + p * lda + i] : a[aOffset + i * lda + p];
+                if (v == 0) {
+                    continue;
+                }
+                if (transB) {
+                    for (int j = 0; j < n; j++) {
+                        c[cRow + j] += v * b[bOffset + j * ldb + p];
+                    }
+                } else {
+                    int bRow = bOffset + p * ldb;
+                    for (int j = 0; j < n; j++) {
+                        c[cRow + j] += v * b[bRow + j];
+                    }
+                }
+            }
+        }
+    }
+
+    private static void gemv(boolean transA, int m, int k, float[] a, int aOffset, int lda,
+                             float[] x, int xOffset, int incx, float[] y, int yOffset, int incy) {
+        if (!transA) {
+            // a dot product per row, four independent accumulators
+            for (int i = 0; i < m; i++) {
+                int row = aOffset + i * lda;
+                float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                int p = 0;
+                if (incx == 1) {
+                    for (; p + 3 < k; p += 4) {
+                        s0 += a[row + p] * x[xOffset + p];
+                        s1 += a[row + p + 1] * x[xOffset + p + 1];
+                        s2 += a[row + p + 2] * x[xOffset + p + 2];
+                        s3 += a[row + p + 3] * x[xOffset + p + 3];
+                    }
+                }
+                for (; p < k; p++) {
+                    s0 += a[row + p] * x[xOffset + p * incx];
+                }
+                y[yOffset + i * incy] += (s0 + s1) + (s2 + s3);
+            }
+        } else {
+            // A is stored k-by-m: accumulate scaled rows of the storage
+            for (int p = 0; p < k; p++) {
+                float xp = x[xOffset + p * incx];
+                if (xp == 0) {
+                    continue;
+                }
+                int row = aOffset + p * lda;
+                if (incy == 1) {
+                    for (int i = 0; i < m; i++) {
+                        y[yOffset + i] += a[row + i] * xp;
+                    }
+                } else {
+                    for (int i = 0; i < m; i++) {
+                        y[yOffset + i * incy] += a[row + i] * xp;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void naive(boolean transA, boolean transB, int m, int n, int k,
+                              float[] a, int aOffset, int lda, float[] b, int bOffset, int ldb,
+                              float[] c, int cOffset, int ldc) {
+        for (int i = 0; i < m; i++) {
+            int cRow = cOffset + i * ldc;
+            for (int p = 0; p < k; p++) {
+                float v = transA ? a[aOffset + p * lda + i] : a[aOffset + i * lda + p];
+                if (v == 0) {
+                    continue;
+                }
+                if (transB) {
+                    for (int j = 0; j < n; j++) {
+                        c[cRow + j] += v * b[bOffset + j * ldb + p];
+                    }
+                } else {
+                    int bRow = bOffset + p * ldb;
+                    for (int j = 0; j < n; j++) {
+                        c[cRow + j] += v * b[bRow + j];
+                    }
+                }
+            }
+        }
+    }
+
+    private static void blocked(boolean transA, boolean transB, int m, int n, int k,
+                                double[] a, int aOffset, int lda, double[] b, int bOffset, int ldb,
+                                double[] c, int cOffset, int ldc) {
+        double[] packedA = PACKED_A.get();
+        double[] packedB = PACKED_B.get();
+        for (int jc = 0; jc < n; jc += NC) {
+            int nc = Math.min(NC, n - jc);
+            for (int pc = 0; pc < k; pc += KC) {
+                int kc = Math.min(KC, k - pc);
+                packB(transB, kc, nc, b, bOffset, ldb, pc, jc, packedB);
+                for (int ic = 0; ic < m; ic += MC) {
+                    int mc = Math.min(MC, m - ic);
+                    packA(transA, mc, kc, a, aOffset, lda, ic, pc, packedA);
+                    macroKernel(mc, nc, kc, packedA, packedB, c, cOffset + ic * ldc + jc, ldc);
+                }
+            }
+        }
+    }
+
+    /**
+     * op(A)[ic:ic+mc, pc:pc+kc] as consecutive MR-row panels, column after column, zero padded
+     */
+    private static void packA(boolean transA, int mc, int kc, double[] a, int aOffset, int lda, int ic, int pc, double[] packed) {
+        int index = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            int rows = Math.min(MR, mc - ir);
+            for (int p = 0; p < kc; p++) {
+                for (int r = 0; r < MR; r++) {
+                    if (r < rows) {
+                        int i = ic + ir + r;
+                        packed[index++] = transA ? a[aOffset + (pc + p) * lda + i] : a[aOffset + i * lda + pc + p];
+                    } else {
+                        packed[index++] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * op(B)[pc:pc+kc, jc:jc+nc] as consecutive NR-column panels, row after row, zero padded
+     */
+    private static void packB(boolean transB, int kc, int nc, double[] b, int bOffset, int ldb, int pc, int jc, double[] packed) {
+        int index = 0;
+        for (int jr = 0; jr < nc; jr += NR) {
+            int columns = Math.min(NR, nc - jr);
+            for (int p = 0; p < kc; p++) {
+                for (int s = 0; s < NR; s++) {
+                    if (s < columns) {
+                        int j = jc + jr + s;
+                        packed[index++] = transB ? b[bOffset + j * ldb + pc + p] : b[bOffset + (pc + p) * ldb + j];
+                    } else {
+                        packed[index++] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void macroKernel(int mc, int nc, int kc, double[] packedA, double[] packedB,
+                                    double[] c, int cOffset, int ldc) {
+        for (int jr = 0; jr < nc; jr += NR) {
+            int columns = Math.min(NR, nc - jr);
+            int bPanel = jr * kc;
+            for (int ir = 0; ir < mc; ir += MR) {
+                int rows = Math.min(MR, mc - ir);
+                microKernel(kc, packedA, ir * kc, packedB, bPanel, c, cOffset + ir * ldc + jr, ldc, rows, columns);
+            }
+        }
+    }
+
+    /**
+     * a 4x4 block of C kept in sixteen locals (registers) while the panels stream through
+     */
+    private static void microKernel(int kc, double[] a, int aIndex, double[] b, int bIndex,
+                                    double[] c, int cOffset, int ldc, int rows, int columns) {
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+        for (int p = 0; p < kc; p++) {
+            double a0 = a[aIndex];
+            double a1 = a[aIndex + 1];
+            double a2 = a[aIndex + 2];
+            double a3 = a[aIndex + 3];
+            double b0 = b[bIndex];
+            double b1 = b[bIndex + 1];
+            double b2 = b[bIndex + 2];
+            double b3 = b[bIndex + 3];
+            c00 += a0 * b0;
+            c01 += a0 * b1;
+            c02 += a0 * b2;
+            c03 += a0 * b3;
+            c10 += a1 * b0;
+            c11 += a1 * b1;
+            c12 += a1 * b2;
+            c13 += a1 * b3;
+            c20 += a2 * b0;
+            c21 += a2 * b1;
+            c22 += a2 * b2;
+            c23 += a2 * b3;
+            c30 += a3 * b0;
+            c31 += a3 * b1;
+            c32 += a3 * b2;
+            c33 += a3 * b3;
+            aIndex += MR;
+            bIndex += NR;
+        }
+        if (rows == MR && columns == NR) {
+            int r0 = cOffset;
+            int r1 = r0 + ldc;
+            int r2 = r1 + ldc;
+            int r3 = r2 + ldc;
+            c[r0] += c00;
+            c[r0 + 1] += c01;
+            c[r0 + 2] += c02;
+            c[r0 + 3] += c03;
+            c[r1] += c10;
+            c[r1 + 1] += c11;
+            c[r1 + 2] += c12;
+            c[r1 + 3] += c13;
+            c[r2] += c20;
+            c[r2 + 1] += c21;
+            c[r2 + 2] += c22;
+            c[r2 + 3] += c23;
+            c[r3] += c30;
+            c[r3 + 1] += c31;
+            c[r3 + 2] += c32;
+            c[r3 + 3] += c33;
+        } else {
+            // an edge tile, only a part of it lies inside C
+            addRow(c, cOffset, columns, c00, c01, c02, c03);
+            if (rows > 1) {
+                addRow(c, cOffset + ldc, columns, c10, c11, c12, c13);
+            }
+            if (rows > 2) {
+                addRow(c, cOffset + 2 * ldc, columns, c20, c21, c22, c23);
+            }
+            if (rows > 3) {
+                addRow(c, cOffset + 3 * ldc, columns, c30, c31, c32, c33);
+            }
+        }
+    }
+
+    private static void addRow(double[] c, int offset, int columns, double v0, double v1, double v2, double v3) {
+        c[offset] += v0;
+        if (columns > 1) {
+            c[offset + 1] += v1;
+        }
+        if (columns > 2) {
+            c[offset + 2] += v2;
+        }
+        if (columns > 3) {
+            c[offset + 3] += v3;
+        }
+    }
+
+    /**
+     * splits rows of C in halves until a chunk is small enough
+     */
+    private static class RowsTask extends RecursiveAction {
+
+        private final boolean transA;
+        private final boolean transB;
+        private final int from;
+        private final int to;
+        private final int n;
+        private final int k;
+        private final double[] a;
+        private final int aOffset;
+        private final int lda;
+        private final double[] b;
+        private final int bOffset;
+        private final int ldb;
+        private final double[] c;
+        private final int cOffset;
+        private final int ldc;
+        private final int grain;
+
+        RowsTask(boolean transA, boolean transB, int from, int to, int n, int k,
+                 double[] a, int aOffset, int lda, double[] b, int bOffset, int ldb,
+                 double[] c, int cOffset, int ldc, int grain) {
+            this.transA = transA;
+            this.transB = transB;
+            this.from = from;
+            this.to = to;
+            this.n = n;
+            this.k = k;
+            this.a = a;
+            this.aOffset = aOffset;
+            this.lda = lda;
+            this.b = b;
+            this.bOffset = bOffset;
+            this.ldb = ldb;
+            this.c = c;
+            this.cOffset = cOffset;
+            this.ldc = ldc;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = to - from;
+            if (rows <= grain || rows < 2 * MR) {
+                // a row range of op(A) starts at a column of the storage when A is transposed
+                int offset = transA ? aOffset + from : aOffset + from * lda;
+                multiply(transA, transB, rows, n, k, a, offset, lda, b, bOffset, ldb, c, cOffset + from * ldc, ldc);
+            } else {
+                int middle = from + (rows / 2 / MR) * MR;
+                invokeAll(
+                        new RowsTask(transA, transB, from, middle, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc, grain),
+                        new RowsTask(transA, transB, middle, to, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc, grain)
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ru.eventflow.neural.kernels;
+
+/**
+ * Chooses the element-wise implementation once, at class initialization.
+ * <p>
+ * SIMD kernels are used when the JVM runs with {@code --add-modules jdk.incubator.vector} (JDK 16+),
+ * otherwise, or when {@code -Dneural.simd=false} is set, plain loops are used. The SIMD class is only compiled
+ * by builds on JDK 16+ (the vector-api profile of the pom), the plain loops are the default on JDK 11.
+ */
+public final class Kernels {
+
+    private static final ElementWiseKernels SCALAR = new ScalarKernels();
+    private static final ElementWiseKernels ELEMENT_WISE = choose();
+
+    private Kernels() {
+    }
+
+    public static ElementWiseKernels elementWise() {
+        return ELEMENT_WISE;
+    }
+
+    public static ElementWiseKernels scalar() {
+        return SCALAR;
+    }
+
+    private static ElementWiseKernels choose() {
+        if (!Boolean.parseBoolean(System.getProperty("neural.simd", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return SCALAR;
+        }
+        try {
+            // loaded reflectively, so that this class does not link against the incubator module
+            return (ElementWiseKernels) Class.forName("ru.eventflow.neural.kernels.SimdKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return SCALAR;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ru.eventflow.neural.kernels;
+
+/**
+ * plain loops, used when the Vector API is not available
+ */
+final class ScalarKernels implements ElementWiseKernels {
+
+    @Override
+    public void add(double[] a, double[] b, double[] c, int length) {
+        for (int n = 0; n < length; n++) {
+            c[n] = a[n] + b[n];
+        }
+    }
+
+    @Override
+    public void mul(double[] a, double[] b, double[] c, int length) {
+        for (int n = 0; n < length; n++) {
+            c[n] = a[n] * b[n];
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, double[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] += alpha * x[n];
+        }
+    }
+
+    @Override
+    public void scale(double alpha, double[] x, double[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = alpha * x[n];
+        }
+    }
+
+    @Override
+    public void sigmoid(double[] x, double[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = 1d / (1 + Math.exp(-x[n]));
+        }
+    }
+
+    @Override
+    public void sigmoidDerivative(double[] y, double[] d, int length) {
+        for (int n = 0; n < length; n++) {
+            d[n] = y[n] * (1 - y[n]);
+        }
+    }
+
+    @Override
+    public void tanh(double[] x, double[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = Math.tanh(x[n]);
+        }
+    }
+
+    @Override
+    public void tanhDerivative(double[] y, double[] d, int length) {
+        for (int n = 0; n < length; n++) {
+            d[n] = 1 - y[n] * y[n];
+        }
+    }
+
+    @Override
+    public void relu(double[] x, double[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = x[n] > 0 ? x[n] : 0;
+        }
+    }
+
+    @Override
+    public void reluDerivative(double[] x, double[] d, int length) {
+        for (int n = 0; n < length; n++) {
+            d[n] = x[n] > 0 ? 1 : 0;
+        }
+    }
+
+    @Override
+    public void exp(double[] x, double[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = Math.exp(x[n]);
+        }
+    }
+
+    @Override
+    public void add(float[] a, float[] b, float[] c, int length) {
+        for (int n = 0; n < length; n++) {
+            c[n] = a[n] + b[n];
+        }
+    }
+
+    @Override
+    public void mul(float[] a, float[] b, float[] c, int length) {
+        for (int n = 0; n < length; n++) {
+            c[n] = a[n] * b[n];
+        }
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, float[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] += alpha * x[n];
+        }
+    }
+
+    @Override
+    public void scale(float alpha, float[] x, float[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = alpha * x[n];
+        }
+    }
+
+    @Override
+    public void sigmoid(float[] x, float[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = 1f / (1 + (float) Math.exp(-x[n]));
+        }
+    }
+
+    @Override
+    public void sigmoidDerivative(float[] y, float[] d, int length) {
+        for (int n = 0; n < length; n++) {
+            d[n] = y[n] * (1 - y[n]);
+        }
+    }
+
+    @Override
+    public void tanh(float[] x, float[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = (float) Math.tanh(x[n]);
+        }
+    }
+
+    @Override
+    public void tanhDerivative(float[] y, float[] d, int length) {
+        for (int n = 0; n < length; n++) {
+            d[n] = 1 - y[n] * y[n];
+        }
+    }
+
+    @Override
+    public void relu(float[] x, float[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = x[n] > 0 ? x[n] : 0;
+        }
+    }
+
+    @Override
+    public void reluDerivative(float[] x, float[] d, int length) {
+        for (int n = 0; n < length; n++) {
+            d[n] = x[n] > 0 ? 1 : 0;
+        }
+    }
+
+    @Override
+    public void exp(float[] x, float[] y, int length) {
+        for (int n = 0; n < length; n++) {
+            y[n] = (float) Math.exp(x[n]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,291 @@
+package ru.eventflow.neural.kernels;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API implementation, the widest species the CPU supports, the remainder goes through scalar loops.
+ * <p>
+ * This class must only be loaded when the jdk.incubator.vector module is present, s. {@link Kernels}
+ */
+final class SimdKernels implements ElementWiseKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public void add(double[] a, double[] b, double[] c, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, n);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, n);
+            va.add(vb).intoArray(c, n);
+        }
+        for (; n < length; n++) {
+            c[n] = a[n] + b[n];
+        }
+    }
+
+    @Override
+    public void mul(double[] a, double[] b, double[] c, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector va = DoubleVector.fromArray(SPECIES, a, n);
+            DoubleVector vb = DoubleVector.fromArray(SPECIES, b, n);
+            va.mul(vb).intoArray(c, n);
+        }
+        for (; n < length; n++) {
+            c[n] = a[n] * b[n];
+        }
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, double[] y, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(SPECIES, x, n);
+            DoubleVector vy = DoubleVector.fromArray(SPECIES, y, n);
+            vx.mul(alpha).add(vy).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] += alpha * x[n];
+        }
+    }
+
+    @Override
+    public void scale(double alpha, double[] x, double[] y, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, n).mul(alpha).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = alpha * x[n];
+        }
+    }
+
+    @Override
+    public void sigmoid(double[] x, double[] y, int length) {
+        DoubleVector ones = DoubleVector.broadcast(SPECIES, 1);
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector denominator = DoubleVector.fromArray(SPECIES, x, n).neg().lanewise(VectorOperators.EXP).add(1);
+            ones.div(denominator).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = 1d / (1 + Math.exp(-x[n]));
+        }
+    }
+
+    @Override
+    public void sigmoidDerivative(double[] y, double[] d, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, y, n);
+            v.mul(v.neg().add(1)).intoArray(d, n);
+        }
+        for (; n < length; n++) {
+            d[n] = y[n] * (1 - y[n]);
+        }
+    }
+
+    @Override
+    public void tanh(double[] x, double[] y, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, n).lanewise(VectorOperators.TANH).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = Math.tanh(x[n]);
+        }
+    }
+
+    @Override
+    public void tanhDerivative(double[] y, double[] d, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector v = DoubleVector.fromArray(SPECIES, y, n);
+            v.mul(v).neg().add(1).intoArray(d, n);
+        }
+        for (; n < length; n++) {
+            d[n] = 1 - y[n] * y[n];
+        }
+    }
+
+    @Override
+    public void relu(double[] x, double[] y, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, n).max(0).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = x[n] > 0 ? x[n] : 0;
+        }
+    }
+
+    @Override
+    public void reluDerivative(double[] x, double[] d, int length) {
+        DoubleVector zeros = DoubleVector.zero(SPECIES);
+        DoubleVector ones = DoubleVector.broadcast(SPECIES, 1);
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            VectorMask<Double> positive = DoubleVector.fromArray(SPECIES, x, n).compare(VectorOperators.GT, 0);
+            zeros.blend(ones, positive).intoArray(d, n);
+        }
+        for (; n < length; n++) {
+            d[n] = x[n] > 0 ? 1 : 0;
+        }
+    }
+
+    @Override
+    public void exp(double[] x, double[] y, int length) {
+        int n = 0;
+        for (int bound = SPECIES.loopBound(length); n < bound; n += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, x, n).lanewise(VectorOperators.EXP).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = Math.exp(x[n]);
+        }
+    }
+
+    @Override
+    public void add(float[] a, float[] b, float[] c, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, n);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, n);
+            va.add(vb).intoArray(c, n);
+        }
+        for (; n < length; n++) {
+            c[n] = a[n] + b[n];
+        }
+    }
+
+    @Override
+    public void mul(float[] a, float[] b, float[] c, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(FLOAT_SPECIES, a, n);
+            FloatVector vb = FloatVector.fromArray(FLOAT_SPECIES, b, n);
+            va.mul(vb).intoArray(c, n);
+        }
+        for (; n < length; n++) {
+            c[n] = a[n] * b[n];
+        }
+    }
+
+    @Override
+    public void axpy(float alpha, float[] x, float[] y, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector vx = FloatVector.fromArray(FLOAT_SPECIES, x, n);
+            FloatVector vy = FloatVector.fromArray(FLOAT_SPECIES, y, n);
+            vx.mul(alpha).add(vy).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] += alpha * x[n];
+        }
+    }
+
+    @Override
+    public void scale(float alpha, float[] x, float[] y, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, x, n).mul(alpha).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = alpha * x[n];
+        }
+    }
+
+    @Override
+    public void sigmoid(float[] x, float[] y, int length) {
+        FloatVector ones = FloatVector.broadcast(FLOAT_SPECIES, 1);
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector denominator = FloatVector.fromArray(FLOAT_SPECIES, x, n).neg().lanewise(VectorOperators.EXP).add(1);
+            ones.div(denominator).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = 1f / (1 + (float) Math.exp(-x[n]));
+        }
+    }
+
+    @Override
+    public void sigmoidDerivative(float[] y, float[] d, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector v = FloatVector.fromArray(FLOAT_SPECIES, y, n);
+            v.mul(v.neg().add(1)).intoArray(d, n);
+        }
+        for (; n < length; n++) {
+            d[n] = y[n] * (1 - y[n]);
+        }
+    }
+
+    @Override
+    public void tanh(float[] x, float[] y, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, x, n).lanewise(VectorOperators.TANH).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = (float) Math.tanh(x[n]);
+        }
+    }
+
+    @Override
+    public void tanhDerivative(float[] y, float[] d, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector v = FloatVector.fromArray(FLOAT_SPECIES, y, n);
+            v.mul(v).neg().add(1).intoArray(d, n);
+        }
+        for (; n < length; n++) {
+            d[n] = 1 - y[n] * y[n];
+        }
+    }
+
+    @Override
+    public void relu(float[] x, float[] y, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, x, n).max(0).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = x[n] > 0 ? x[n] : 0;
+        }
+    }
+
+    @Override
+    public void reluDerivative(float[] x, float[] d, int length) {
+        FloatVector zeros = FloatVector.zero(FLOAT_SPECIES);
+        FloatVector ones = FloatVector.broadcast(FLOAT_SPECIES, 1);
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            VectorMask<Float> positive = FloatVector.fromArray(FLOAT_SPECIES, x, n).compare(VectorOperators.GT, 0);
+            zeros.blend(ones, positive).intoArray(d, n);
+        }
+        for (; n < length; n++) {
+            d[n] = x[n] > 0 ? 1 : 0;
+        }
+    }
+
+    @Override
+    public void exp(float[] x, float[] y, int length) {
+        int n = 0;
+        for (int bound = FLOAT_SPECIES.loopBound(length); n < bound; n += FLOAT_SPECIES.length()) {
+            FloatVector.fromArray(FLOAT_SPECIES, x, n).lanewise(VectorOperators.EXP).intoArray(y, n);
+        }
+        for (; n < length; n++) {
+            y[n] = (float) Math.exp(x[n]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SIMD (" + SPECIES + ", " + FLOAT_SPECIES + ")";
+    }
+}
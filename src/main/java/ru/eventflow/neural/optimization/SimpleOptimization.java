@@ -1,43 +1,31 @@
 package ru.eventflow.neural.optimization;
 
 import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.graph.GraphExecutor;
 import ru.eventflow.neural.graph.Node;
 import ru.eventflow.neural.graph.Variable;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 public class SimpleOptimization implements Optimization {
 
     private double learningRate;
     private double threshold;
     private Node loss;
-    private Set<Variable> variables = new HashSet<>();
-    private Set<Node> nodes = new HashSet<>();
+    private GraphExecutor executor;
+    private List<Variable> variables = new ArrayList<>();
 
     public SimpleOptimization(double learningRate, double threshold, Node loss) {
         this.learningRate = learningRate;
         this.threshold = threshold;
         this.loss = loss;
 
-        populateCollections(loss);
-    }
-
-    private void populateCollections(Node node) {
-        if (!nodes.contains(node)) {
-            nodes.add(node);
-            if (node instanceof Variable && !variables.contains(node)) {
+        this.executor = new GraphExecutor(loss);
+        for (Node node : executor.getNodes()) {
+            if (node instanceof Variable) {
                 variables.add((Variable) node);
             }
-            for (Node n : node.getChildren()) {
-                populateCollections(n);
-            }
-        }
-    }
-
-    private void reset() {
-        for (Node node : nodes) {
-            node.reset();
         }
     }
 
@@ -46,7 +34,7 @@ public class SimpleOptimization implements Optimization {
 
         System.out.println("Training started");
 
-        double loss_old = loss.getValue().get(new int[]{0, 0, 0});
+        double loss_old = executor.forward().get(0, 0, 0);
         double loss_new = loss_old - 0.1; // pick another point to begin with approximation
 
         int i = 0;
@@ -57,8 +45,8 @@ public class SimpleOptimization implements Optimization {
             loss_old = loss_new;
 
             // forward pass
-            reset();
-            loss_new = loss.getValue().get(new int[]{0, 0, 0});
+            executor.reset();
+            loss_new = executor.forward().get(0, 0, 0);
 
             if (i % 100 == 0) {
 //            if (true) {
@@ -66,10 +54,11 @@ public class SimpleOptimization implements Optimization {
             }
 
             // backward pass and gradients
+            executor.backward();
             for (Variable variable : variables) {
                 Batch gradient = variable.getDualValue();
-                Batch update = gradient.times(-learningRate);
-                variable.setValue(variable.getValue().plus(update));
+                // a fresh value, nodes which were not reset may still refer to the old one
+                variable.setValue(variable.getValue().copy().axpy(-learningRate, gradient));
             }
 
             long end_ts = System.currentTimeMillis();
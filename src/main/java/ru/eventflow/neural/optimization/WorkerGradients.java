@@ -0,0 +1,108 @@
+package ru.eventflow.neural.optimization;
+
+import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.Precision;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.ToLongFunction;
+
+/**
+ * Gradient buffers of every worker of a data-parallel minibatch, by parameter in a fixed order. A worker accumulates
+ * into its own buffers without locking, {@link #reduce(ExecutorService)} sums them up afterwards.
+ * <p>
+ * Together with {@link #assign(List, int, ToLongFunction)} the result depends on the minibatch only, not on the
+ * scheduling of the threads, so a run can be reproduced bit for bit.
+ */
+public class WorkerGradients {
+
+    private final Batch[][] gradients;
+
+    /**
+     * @param shapes -- of the parameters, in the order of the buffers
+     */
+    public WorkerGradients(int workers, List<int[]> shapes, Precision precision) {
+        gradients = new Batch[workers][shapes.size()];
+        for (Batch[] buffers : gradients) {
+            for (int p = 0; p < buffers.length; p++) {
+                buffers[p] = new Batch(shapes.get(p), precision);
+            }
+        }
+    }
+
+    /**
+     * @return the buffers of the worker, after {@link #reduce(ExecutorService)} those of the first one hold the sums
+     */
+    public Batch[] get(int worker) {
+        return gradients[worker];
+    }
+
+    public int getWorkers() {
+        return gradients.length;
+    }
+
+    /**
+     * clears the buffers of the worker before a minibatch
+     */
+    public void clear(int worker) {
+        for (Batch gradient : gradients[worker]) {
+            gradient.fill(0);
+        }
+    }
+
+    /**
+     * Sums the buffers of all workers into those of the first one, pairwise along a fixed binary tree, so the result
+     * is the same whatever the scheduling. The pairs of a level of the tree are summed concurrently.
+     */
+    public void reduce(ExecutorService executor) throws InterruptedException, ExecutionException {
+        for (int stride = 1; stride < gradients.length; stride *= 2) {
+            List<Callable<Void>> sums = new ArrayList<>();
+            for (int worker = 0; worker + stride < gradients.length; worker += 2 * stride) {
+                Batch[] target = gradients[worker];
+                Batch[] source = gradients[worker + stride];
+                sums.add(() -> {
+                    for (int p = 0; p < target.length; p++) {
+                        target[p].addInPlace(source[p]);
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> sum : executor.invokeAll(sums)) {
+                sum.get();
+            }
+        }
+    }
+
+    /**
+     * Distributes the graphs of a minibatch over the workers, the most costly first to the least loaded one (the
+     * first of equally loaded ones). The assignment, and so the order of the sums, depends on the graphs only.
+     *
+     * @return the graphs of every worker, in the order they are to be run
+     */
+    public static <T> List<List<T>> assign(List<T> graphs, int workers, ToLongFunction<T> cost) {
+        List<T> sorted = new ArrayList<>(graphs);
+        sorted.sort(Comparator.comparingLong(cost).reversed()); // stable, equal costs keep their order
+
+        List<List<T>> assignment = new ArrayList<>(workers);
+        long[] load = new long[workers];
+        for (int worker = 0; worker < workers; worker++) {
+            assignment.add(new ArrayList<>());
+        }
+        for (T graph : sorted) {
+            int least = 0;
+            for (int worker = 1; worker < workers; worker++) {
+                if (load[worker] < load[least]) {
+                    least = worker;
+                }
+            }
+            assignment.get(least).add(graph);
+            load[least] += cost.applyAsLong(graph);
+        }
+        return assignment;
+    }
+}
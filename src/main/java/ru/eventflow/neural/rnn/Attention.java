@@ -16,6 +16,8 @@ public class Attention {
     private Pack p;
     private int outputSize;
     private int hiddenSize;
+    private Node padding;
+    private Node inverseLengths;
 
     /**
      * softmax over encoder states for each of the decoder hidden states (in the order of appearance)
@@ -30,13 +32,27 @@ public class Attention {
      * @param outputSize -- the size of the non-normalized output vector (must be equal to the size of the gold value)
      */
     public Attention(Variable W_a, Variable W_c, List<Node> encoder, int hiddenSize, int outputSize) {
+        this(W_a, W_c, encoder, hiddenSize, outputSize, null, null);
+    }
+
+    /**
+     * over a padded minibatch, the hidden states being of shape [B, hiddenSize, 1]
+     *
+     * @param padding        -- added to the scores, zeros for the positions of an entry, minus infinity for its
+     *                       padding, of shape [B, encoder length, 1], null if nothing is padded
+     * @param inverseLengths -- one over the source length of every entry, of shape [B, hiddenSize, 1]
+     */
+    public Attention(Variable W_a, Variable W_c, List<Node> encoder, int hiddenSize, int outputSize,
+                     Node padding, Node inverseLengths) {
         this.W_a = W_a;
         this.W_c = W_c;
         this.hiddenSize = hiddenSize;
         this.outputSize = outputSize;
+        this.padding = padding;
+        this.inverseLengths = inverseLengths;
 
         // pack the input vectors and take a dot product of the matrix with the output vector
-        this.p = new Pack(new int[]{1, hiddenSize, encoder.size()}, encoder);
+        this.p = new Pack(new int[]{encoder.get(0).getSize(), hiddenSize, encoder.size()}, encoder);
     }
 
     /**
@@ -46,26 +62,36 @@ public class Attention {
      */
     public Node buildOutputNode(Node h) {
         int k = p.getColumns(); // length of encoder
+        int size = p.getSize(); // of the minibatch
 
         // an attention distribution -- visualize it!
-        Node a = new Softmax(new int[]{1, k, 1}, new Matmul(new int[]{1, k, 1},
-                new Transpose(new int[]{1, k, hiddenSize}, p),
-                new Matmul(new int[]{1, hiddenSize, 1}, W_a, h)
-        ));
+        Node scores = new Matmul(new int[]{size, k, 1},
+                p,
+                new Matmul(new int[]{size, hiddenSize, 1}, W_a, h),
+                true
+        );
+        if (padding != null) {
+            scores = new Sum(new int[]{size, k, 1}, scores, padding);
+        }
+        Node a = new Softmax(new int[]{size, k, 1}, scores);
 
         // for visualization
         distributions.add(a);
 
         // context vector for global attention -- a weighted average of source vectors
-        Placeholder denominator = new Placeholder(new int[]{1, hiddenSize, 1});
-        denominator.setValue(Batch.ones(new int[]{1, hiddenSize, 1}).times(1d / k));
-        Node c = new Mul(new int[]{1, hiddenSize, 1}, new Matmul(new int[]{1, hiddenSize, 1}, p, a), denominator);
+        Node denominator = inverseLengths;
+        if (denominator == null) {
+            Placeholder constant = new Placeholder(new int[]{size, hiddenSize, 1});
+            constant.setValue(Batch.ones(new int[]{size, hiddenSize, 1}).scaleInPlace(1d / k));
+            denominator = constant;
+        }
+        Node c = new Mul(new int[]{size, hiddenSize, 1}, new Matmul(new int[]{size, hiddenSize, 1}, p, a), denominator);
 
         // produce the output
-        return new Tanh(new int[]{1, outputSize, 1},
-                new Matmul(new int[]{1, outputSize, 1},
+        return new Tanh(new int[]{size, outputSize, 1},
+                new Matmul(new int[]{size, outputSize, 1},
                         W_c,
-                        new Concat(new int[]{1, 2 * hiddenSize, 1}, c, h)
+                        new Concat(new int[]{size, 2 * hiddenSize, 1}, c, h)
                 )
         );
     }
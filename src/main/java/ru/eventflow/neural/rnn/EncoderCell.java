@@ -5,7 +5,14 @@ import ru.eventflow.neural.graph.Node;
 public class EncoderCell extends LSTM {
 
     public EncoderCell(Parameters parameters, Node h_previous, Node c_previous, Node input) {
-        super(parameters, Parameters.Type.ENCODER, h_previous, c_previous, input);
+        this(parameters, null, h_previous, c_previous, input);
+    }
+
+    /**
+     * @param weights -- stacked weights of a fused cell, s. {@link NetworkFactory#NetworkFactory(Parameters, boolean)}
+     */
+    public EncoderCell(Parameters parameters, Node weights, Node h_previous, Node c_previous, Node input) {
+        super(parameters, Parameters.Type.ENCODER, weights, h_previous, c_previous, input);
     }
 
 }
@@ -1,11 +1,14 @@
 package ru.eventflow.neural.rnn;
 
-import Jama.Matrix;
 import org.apache.log4j.Logger;
+import ru.eventflow.neural.Arena;
 import ru.eventflow.neural.Batch;
 import ru.eventflow.neural.PersistenceUtils;
+import ru.eventflow.neural.Precision;
+import ru.eventflow.neural.dataset.BucketSampler;
 import ru.eventflow.neural.dataset.TrainingExample;
 import ru.eventflow.neural.graph.*;
+import ru.eventflow.neural.optimization.WorkerGradients;
 import ru.eventflow.neural.visualization.AttentionVisualizer;
 import ru.eventflow.neural.visualization.ComputationGraphVisualizer;
 
@@ -15,6 +18,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.DoubleAdder;
 
 /**
@@ -30,6 +34,8 @@ public class EncoderDecoderEngine {
     private static final Logger logger = Logger.getLogger(EncoderDecoderEngine.class);
 
     private static final int SNAPSHOT_FREQ = 1000;
+    private static final double BUCKET_RATIO = 0.1; // of source lengths within a minibatch, s. BucketSampler
+    private static final int TEMPLATES_PER_THREAD = 64; // the least recently used one is evicted beyond that
     private final int minibatchSize;
     private final int onehotSize;
     private final int hiddenSize;
@@ -41,6 +47,26 @@ public class EncoderDecoderEngine {
     private double regularizationCoefficient;
 
     private ExecutorService executor;
+    private final int numThreads;
+    // gradients of every worker by parameter, s. ForwardBackwardTask, allocated once per training
+    private Parameters.Type[] gradientTypes;
+    private String[] gradientNames;
+    private WorkerGradients workerGradients;
+    private double[] workerLosses;
+    // unrolled graphs of the worker threads by source length and decoder steps, s. template(List)
+    private final ThreadLocal<Map<Long, GraphTemplate>> templates = ThreadLocal.withInitial(
+            () -> new LinkedHashMap<Long, GraphTemplate>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, GraphTemplate> eldest) {
+                    return size() > TEMPLATES_PER_THREAD;
+                }
+            });
+    private int checkpointInterval; // encoder cells recomputed together, 0 keeps all of them
+    private boolean fusedCells;
+    private boolean projectedInputs;
+    private int graphBatchSize = 1; // examples per graph evaluation
+    private boolean asynchronous;
+    private long parallelThreshold; // work of a graph node computed on the common pool, 0 computes graphs sequentially
     private AttentionVisualizer attentionVisualizer;
 
     private EncoderDecoderEngine(int minibatchSize, double learningRate, int embeddingSize, int hiddenSize,
@@ -53,6 +79,7 @@ public class EncoderDecoderEngine {
         this.gradientClippingThreashold = clipping;
         this.regularizationCoefficient = regularizationCoefficient;
         this.executor = Executors.newFixedThreadPool(numThread);
+        this.numThreads = numThread;
 
         this.attentionVisualizer = new AttentionVisualizer(new File("/tmp/images"));
     }
@@ -71,9 +98,73 @@ public class EncoderDecoderEngine {
 
     public EncoderDecoderEngine(int minibatchSize, double learningRate, int embeddingSize, int hiddenSize,
                                 int numThreads, double clipping, double regularizationCoefficient, String snapshotDirectory, List<String> tokens) {
+        this(minibatchSize, learningRate, embeddingSize, hiddenSize, numThreads, clipping, regularizationCoefficient,
+                snapshotDirectory, tokens, Precision.DOUBLE);
+    }
+
+    /**
+     * @param precision -- of the parameters and of all computations, a restored snapshot keeps its own precision
+     */
+    public EncoderDecoderEngine(int minibatchSize, double learningRate, int embeddingSize, int hiddenSize,
+                                int numThreads, double clipping, double regularizationCoefficient, String snapshotDirectory,
+                                List<String> tokens, Precision precision) {
         this(minibatchSize, learningRate, embeddingSize, hiddenSize, numThreads, clipping, regularizationCoefficient, tokens);
         this.snapshotDirectory = snapshotDirectory;
-        this.parameters = new Parameters(embeddingSize, hiddenSize, tokens);
+        this.parameters = new Parameters(embeddingSize, hiddenSize, tokens, precision);
+    }
+
+    /**
+     * trades memory for compute on long sources, s. {@link GraphTemplate}, must be set before training
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * builds LSTM steps as single nodes, s. {@link NetworkFactory#NetworkFactory(Parameters, boolean)}, must be set
+     * before training
+     */
+    public void setFusedCells(boolean fusedCells) {
+        this.fusedCells = fusedCells;
+    }
+
+    /**
+     * computes the input projections of the encoder for all timesteps at once,
+     * s. {@link NetworkFactory#buildEncoder(List)}, must be set before training
+     */
+    public void setProjectedInputs(boolean projectedInputs) {
+        this.projectedInputs = projectedInputs;
+    }
+
+    /**
+     * evaluates the minibatch in graphs of this many padded examples, s.
+     * {@link GraphTemplate#GraphTemplate(NetworkFactory, int, int, int, int)}, separate cells only, must be set
+     * before training
+     */
+    public void setGraphBatchSize(int graphBatchSize) {
+        if (graphBatchSize < 1) {
+            throw new IllegalArgumentException("At least one example per graph is needed");
+        }
+        this.graphBatchSize = graphBatchSize;
+    }
+
+    /**
+     * trains without a barrier per minibatch, s. {@link HogwildTask}, must be set before training
+     */
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * computes independent nodes of a graph (e.g. the gates of separate LSTM cells) on the common pool if their
+     * estimated work reaches the threshold, s. {@link CompiledGraph#forward(ForkJoinPool, long)}, 0 turns it off,
+     * must be set before training
+     */
+    public void setParallelThreshold(long parallelThreshold) {
+        if (parallelThreshold < 0) {
+            throw new IllegalArgumentException("Negative threshold");
+        }
+        this.parallelThreshold = parallelThreshold;
     }
 
     private void restoreSnapshot(InputStream inputStream) throws IOException, ClassNotFoundException {
@@ -92,18 +183,28 @@ public class EncoderDecoderEngine {
     }
 
     /**
-     * a new loss each time, because the decoder part can change
+     * unrolled graphs are reused for examples of the same source and target lengths, s. {@link GraphTemplate},
+     * minibatches come from a {@link BucketSampler}
      */
     public void train(Set<TrainingExample> trainingSet) {
-        int epoch = 0;
-
-        ExecutorCompletionService<Void> ecs = new ExecutorCompletionService<>(executor);
+        if (graphBatchSize > 1 && (fusedCells || projectedInputs)) {
+            throw new IllegalStateException("Graphs of several examples need separate cells");
+        }
+        // minibatches of similar lengths, shuffled every pass
+        BucketSampler sampler = new BucketSampler(trainingSet, minibatchSize, BUCKET_RATIO, new Random(0));
+        if (asynchronous) {
+            trainAsynchronously(sampler, trainingSet.size());
+            return;
+        }
 
-        // TODO shuffle (currently I don't need it)
-        List<TrainingExample> population = new ArrayList<>(trainingSet);
+        int epoch = 0;
+        allocateGradients();
+        int pass = 1;
+        double passLoss = 0;
+        long passStart = System.currentTimeMillis();
 
         // TODO stopping criterion
-        // networks will be rebuilt, parameters will be reused
+        // networks are built once per pair of lengths and thread, parameters are shared
         while (true) {
 //            boolean verbose = epoch % 10 == 0;
             boolean verbose = true;
@@ -111,52 +212,48 @@ public class EncoderDecoderEngine {
             epoch++;
             long start_ts = System.currentTimeMillis();
 
-            // sample a mini-batch by simply sliding over the (shuffled) data
-            TrainingExample[] sample = new TrainingExample[minibatchSize];
-            for (int i = 0; i < minibatchSize; i++) {
-                sample[i] = population.get((i + epoch * minibatchSize) % population.size());
+            // sorted by length, so that the examples sharing a graph have similar lengths
+            List<TrainingExample> sample = sampler.next();
+            if (sampler.getPass() != pass) {
+                logPass(pass, passLoss / trainingSet.size(), passStart);
+                pass = sampler.getPass();
+                passLoss = 0;
+                passStart = start_ts;
             }
+            List<List<TrainingExample>> graphs = split(sample);
 
-            DoubleAdder totalMiniBatchLoss = new DoubleAdder();
-            Map<String, Batch> encoderGradients = Collections.synchronizedMap(new HashMap<>());
-            Map<String, Batch> decoderGradients = Collections.synchronizedMap(new HashMap<>());
-            Map<String, Batch> attentionGradients = Collections.synchronizedMap(new HashMap<>());
-            Map<String, Batch> embeddingGradients = Collections.synchronizedMap(new HashMap<>());
-
-            // tasks
-            List<ForwardBackwardTask> tasks = new ArrayList<>();
-            for (TrainingExample example : sample) {
-                tasks.add(new ForwardBackwardTask(example, totalMiniBatchLoss, encoderGradients, decoderGradients,
-                        attentionGradients, embeddingGradients, verbose));
-            }
-
-            // submit and wait for completion
+            // every worker accumulates into its own buffers, which are summed up afterwards
             try {
-                for (Callable<Void> callable : tasks) {
-                     ecs.submit(callable);
+                List<ForwardBackwardTask> tasks = new ArrayList<>(numThreads);
+                List<List<List<TrainingExample>>> assignment = WorkerGradients.assign(graphs, numThreads, BucketSampler::cost);
+                for (int worker = 0; worker < numThreads; worker++) {
+                    tasks.add(new ForwardBackwardTask(worker, assignment.get(worker), verbose));
                 }
-                for (int i = 0; i < tasks.size(); i++) {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
                     try {
-                        ecs.take().get();
+                        future.get();
                     } catch (ExecutionException e) {
                         System.out.println("Task threw an exception");
                         logger.error(e);
                         e.printStackTrace();
                     }
                 }
-            } catch (InterruptedException e) {
+                workerGradients.reduce(executor);
+            } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
             }
 
 //            System.gc();
 
-            double averageLoss = totalMiniBatchLoss.doubleValue() / minibatchSize;
+            double totalLoss = 0;
+            for (double loss : workerLosses) {
+                totalLoss += loss;
+            }
+            double averageLoss = totalLoss / sample.size();
+            passLoss += totalLoss;
 
             // a single update
-            updateParameters(Parameters.Type.DECODER, decoderGradients);
-            updateParameters(Parameters.Type.ENCODER, encoderGradients);
-            updateParameters(Parameters.Type.ATTENTION, attentionGradients);
-            updateParameters(Parameters.Type.EMBEDDING, embeddingGradients);
+            updateParameters(sample.size());
 
             if (verbose) {
                 long end_ts = System.currentTimeMillis();
@@ -189,154 +286,246 @@ public class EncoderDecoderEngine {
     }
 
     /**
-     * Parameters update with gradient clipping.
-     * We used a copy of parameters for computations, but we write to the original.
+     * Hogwild-style training: the workers pull graphs of a pass one at a time, and apply the update of every graph
+     * to the shared parameters at once, s. {@link HogwildTask}. The only barrier is at the end of a pass, for the report.
+     * The schedule and the snapshots follow the number of examples seen, counted in minibatches.
+     */
+    private void trainAsynchronously(BucketSampler sampler, int examples) {
+        long seen = 0;
+        while (true) {
+            long start_ts = System.currentTimeMillis();
+            List<List<TrainingExample>> graphs = new ArrayList<>();
+            for (List<TrainingExample> minibatch : sampler.nextPass()) {
+                graphs.addAll(split(minibatch));
+            }
+
+            AtomicInteger next = new AtomicInteger();
+            DoubleAdder loss = new DoubleAdder();
+            List<HogwildTask> tasks = new ArrayList<>(numThreads);
+            for (int worker = 0; worker < numThreads; worker++) {
+                tasks.add(new HogwildTask(graphs, next, loss));
+            }
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        System.out.println("Task threw an exception");
+                        logger.error(e);
+                        e.printStackTrace();
+                    }
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            logPass(sampler.getPass(), loss.sum() / examples, start_ts);
+
+            int previous = (int) (seen / minibatchSize);
+            seen += examples;
+            int epoch = (int) (seen / minibatchSize);
+
+            if (epoch / SNAPSHOT_FREQ > previous / SNAPSHOT_FREQ) {
+                try {
+                    saveSnapshot(new File(snapshotDirectory), epoch);
+                    System.out.println("Snapshot persisted at epoch " + epoch);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (int halvings = epoch / 10000 - previous / 10000; halvings > 0; halvings--) {
+                learningRate /= 2;
+                logger.info("learning_rate = " + learningRate);
+            }
+            if (epoch >= 100_000) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * the average loss of a whole pass over the data, comparable between the synchronous and asynchronous training
+     */
+    private void logPass(int pass, double averageLoss, long start_ts) {
+        long end_ts = System.currentTimeMillis();
+        logger.info("pass = " + pass + ", lr = " + learningRate + ", average loss = " + averageLoss + ", took " + (end_ts - start_ts) + " ms");
+    }
+
+    /**
+     * consecutive examples of a minibatch sorted by length, graphBatchSize of them per graph
      */
-    private void updateParameters(Parameters.Type type, Map<String, Batch> gradients) {
-        for (Map.Entry<String, Batch> entry : gradients.entrySet()) {
-            Batch update = entry.getValue().times(-learningRate / minibatchSize).clip(gradientClippingThreashold);
-
-            String parameterName = entry.getKey();
-            Variable previousValue = parameters.get(type, parameterName);
-            Variable variable = new Variable(parameterName, update.shape(), previousValue.getValue().plus(update));
-            parameters.set(type, parameterName, variable);
+    private List<List<TrainingExample>> split(List<TrainingExample> minibatch) {
+        List<List<TrainingExample>> graphs = new ArrayList<>();
+        for (int i = 0; i < minibatch.size(); i += graphBatchSize) {
+            graphs.add(minibatch.subList(i, Math.min(i + graphBatchSize, minibatch.size())));
         }
+        return graphs;
     }
 
-    private Node toEmbedding(String s) {
-        Placeholder placeholder = new Placeholder(new int[]{1, parameters.embeddingSize, 1});
-        placeholder.setValue(parameters.embedding(s));
-        return placeholder;
+    /**
+     * the unrolled graph of the current thread for the examples, built once per number of examples, (padded) source
+     * length and number of decoder steps, s. {@link GraphTemplate}. Targets longer than the decoder share a graph.
+     */
+    private GraphTemplate template(List<TrainingExample> examples) {
+        int sourceLength = 0;
+        int steps = 0;
+        for (TrainingExample example : examples) {
+            sourceLength = Math.max(sourceLength, example.getSource().size());
+            steps = Math.max(steps, Math.min(example.getTarget().size() + 1, VanillaDecoder.MAX_OUTPUT_LENGTH));
+        }
+
+        long key = (long) examples.size() << 42 | (long) sourceLength << 21 | steps;
+        int size = sourceLength;
+        int targetLength = steps - 1; // unrolled for the target and EOS
+        return templates.get().computeIfAbsent(key, k -> {
+            GraphTemplate template = new GraphTemplate(new NetworkFactory(parameters.copy(), fusedCells, projectedInputs),
+                    examples.size(), size, targetLength, checkpointInterval);
+            if (parallelThreshold > 0) {
+                template.setParallelForward(ForkJoinPool.commonPool(), parallelThreshold);
+            }
+            return template;
+        });
     }
 
-    private List<LSTM> buildEncoder(NetworkFactory factory, List<String> tokens) {
-        List<LSTM> states = new ArrayList<>();
-        LSTM previous = null;
-        for (int i = 0; i < tokens.size(); i++) {
-            LSTM cell;
-            if (i == 0) {
-                cell = factory.buildInitialEncoderCell(toEmbedding(tokens.get(i)));
-            } else {
-                cell = factory.buildEncoderCell(previous, toEmbedding(tokens.get(i)));
+    /**
+     * a buffer per worker for every parameter, the parameters in a fixed order
+     */
+    private void allocateGradients() {
+        List<Parameters.Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<int[]> shapes = new ArrayList<>();
+        for (Parameters.Type type : Parameters.Type.values()) {
+            for (Variable variable : parameters.getAll(type)) {
+                types.add(type);
+                names.add(variable.getName());
+                shapes.add(variable.shape());
             }
+        }
+        gradientTypes = types.toArray(new Parameters.Type[0]);
+        gradientNames = names.toArray(new String[0]);
+
+        workerGradients = new WorkerGradients(numThreads, shapes, parameters.getPrecision());
+        workerLosses = new double[numThreads];
+    }
 
-            states.add(cell);
-            previous = cell;
+    /**
+     * Parameters update with gradient clipping.
+     * We used a copy of parameters for computations, but we write to the original. All tasks of the mini-batch
+     * have completed by now, so the values (shared with the copies) are updated in place, and so are
+     * the reduced gradients, which are cleared by the workers before the next minibatch.
+     */
+    private void updateParameters(int examples) {
+        Batch[] gradients = workerGradients.get(0);
+        for (int p = 0; p < gradients.length; p++) {
+            Batch update = gradients[p].scaleInPlace(-learningRate / examples).clipInPlace(gradientClippingThreashold);
+            parameters.get(gradientTypes[p], gradientNames[p]).getValue().addInPlace(update);
         }
-        return states;
     }
 
     /**
-     * Forward and backward passes for one training example
+     * Forward and backward passes for the graphs assigned to a worker, one or several training examples each.
+     * The gradients accumulate into the buffers of the worker without any locking.
      */
     private class ForwardBackwardTask implements Callable<Void> {
-        private final TrainingExample example;
+        private final int worker;
+        private final List<List<TrainingExample>> graphs;
         private final boolean verbose;
-        private final DoubleAdder averageLoss;
-        private final Map<String, Batch> encoderGradients; // total
-        private final Map<String, Batch> decoderGradients; // total
-        private final Map<String, Batch> attentionGradients; // total
-        private final Map<String, Batch> embeddingGradients; // total
-
-        ForwardBackwardTask(TrainingExample example,
-                            DoubleAdder averageLoss,
-                            Map<String, Batch> encoderGradients,
-                            Map<String, Batch> decoderGradients,
-                            Map<String, Batch> attentionGradients,
-                            Map<String, Batch> embeddingGradients,
-                            boolean verbose) {
-            this.example = example;
-            this.averageLoss = averageLoss;
+
+        /**
+         * @param graphs -- assigned by {@link WorkerGradients#assign}, run in this order
+         */
+        ForwardBackwardTask(int worker, List<List<TrainingExample>> graphs, boolean verbose) {
+            this.worker = worker;
+            this.graphs = graphs;
             this.verbose = verbose;
-            this.encoderGradients = encoderGradients;
-            this.decoderGradients = decoderGradients;
-            this.attentionGradients = attentionGradients;
-            this.embeddingGradients = embeddingGradients;
         }
 
         @Override
         public Void call() throws Exception {
-            Parameters parametersCopy = parameters.copy(); // shallow
-            NetworkFactory detachedFactory = new NetworkFactory(parametersCopy);
-
-            List<String> source = example.getSource();
-            List<String> target = example.getTarget();
-
-            List<LSTM> encoder = buildEncoder(detachedFactory, source);
-
-            // attention is inside the decoder
-            List<Node> y_hats = new VanillaDecoder(parametersCopy, target).decode(detachedFactory, encoder, verbose, true);
+            workerGradients.clear(worker);
+            workerLosses[worker] = 0;
 
-            // a node for zero padding
-            Placeholder none = new Placeholder(new int[]{1, onehotSize, 1});
-            none.setValue(Batch.zeros(new int[]{1, onehotSize, 1}));
-
-            // individual cross-entropy losses for each generated token
-            Node sequenceLoss = null;
-
-            // pad with zeros
-            int paddedSequenceLength = Math.max(y_hats.size(), target.size());
-            for (int i = 0; i < paddedSequenceLength; i++) {
-                Node y_hat;
-                if (i < y_hats.size()) {
-                    y_hat = y_hats.get(i);
-                } else {
-                    y_hat = none;
+            // everything allocated by the graph follows the precision of the parameters and is released at once
+            Precision previous = Precision.set(parameters.getPrecision());
+            try {
+                for (List<TrainingExample> examples : graphs) {
+                    try (Arena arena = Arena.enter()) {
+                        forwardBackward(examples);
+                    }
                 }
+            } finally {
+                Precision.set(previous);
+            }
+            return null;
+        }
 
-                Placeholder y = new Placeholder(new int[]{1, onehotSize, 1});
-                if (i < target.size()) {
-                    Batch gold_data = new Batch(new int[]{1, onehotSize, 1});
-                    double[][] onehot = new double[1][onehotSize];
-                    onehot[0] = parameters.onehot(target.get(i)).get(0).getColumnPackedCopy();
-                    gold_data.put(0, new Matrix(onehot).transpose());
-                    y.setValue(gold_data);
-                } else {
-                    y = none;
+        private void forwardBackward(List<TrainingExample> examples) {
+            GraphTemplate template = template(examples);
+            workerLosses[worker] += template.forwardBackward(examples);
+            if (verbose) {
+                for (int b = 0; b < examples.size(); b++) {
+                    int length = Math.min(examples.get(b).getTarget().size() + 1, VanillaDecoder.MAX_OUTPUT_LENGTH);
+                    System.out.println(String.join(" ", template.getPredictions(b).subList(0, length)));
                 }
+            }
 
-                // this CE loss does not support matrices, for now it only supports [1, n, 1] shapes
-                Node timestepLoss = new CrossEntropyLoss(new int[]{1, 1, 1}, y, y_hat);
-                if (sequenceLoss == null) {
-                    sequenceLoss = timestepLoss;
-                } else {
-                    sequenceLoss = new Sum(new int[]{1, 1, 1}, sequenceLoss, timestepLoss);
+            Batch[] gradients = workerGradients.get(worker);
+            for (int p = 0; p < gradients.length; p++) {
+                Batch dual = template.getGradient(template.getParameters().get(gradientTypes[p], gradientNames[p]));
+                if (dual != null) {
+                    gradients[p].addInPlace(dual);
                 }
             }
+        }
+    }
 
-            // average cross-entropy loss for entire generated sequence
-            Placeholder inverseLength = new Placeholder(new int[]{1, 1, 1});
-            inverseLength.setValue(Batch.scalar(1.0 / paddedSequenceLength));
-            Node loss = new Mul(new int[]{1, 1, 1}, sequenceLoss, inverseLength);
-
-            // forward
-            averageLoss.add(loss.getValue().get(new int[]{0, 0, 0}));
-
-//            new ComputationGraphVisualizer().visualize(loss);
-//            ComputationGraphVisualizer.block();
-
+    /**
+     * Pulls graphs of a pass until none is left, evaluates each against the live parameters and applies its update
+     * at once, without any locking (Niu et al. Hogwild!: A Lock-Free Approach to Parallelizing Stochastic Gradient
+     * Descent. 2011). Only the parameters the graph depends on are written, the writes of other workers may
+     * interleave with the reads and writes of this one. The updates of a graph are scaled as those of a minibatch
+     * of its examples.
+     */
+    private class HogwildTask implements Callable<Void> {
+        private final List<List<TrainingExample>> graphs;
+        private final AtomicInteger next;
+        private final DoubleAdder loss;
+
+        HogwildTask(List<List<TrainingExample>> graphs, AtomicInteger next, DoubleAdder loss) {
+            this.graphs = graphs;
+            this.next = next;
+            this.loss = loss;
+        }
 
-            // backward + collect gradients (compute total)
-            for (Variable variable : parametersCopy.getAll(Parameters.Type.DECODER)) {
-                Batch sum = decoderGradients.getOrDefault(variable.getName(), new Batch(variable.shape()));
-                decoderGradients.put(variable.getName(), sum.plus(variable.getDualValue()));
-            }
-            for (Variable variable : parametersCopy.getAll(Parameters.Type.ENCODER)) {
-                Batch sum = encoderGradients.getOrDefault(variable.getName(), new Batch(variable.shape()));
-                encoderGradients.put(variable.getName(), sum.plus(variable.getDualValue()));
-            }
-            for (Variable variable : parametersCopy.getAll(Parameters.Type.ATTENTION)) {
-                Batch sum = attentionGradients.getOrDefault(variable.getName(), new Batch(variable.shape()));
-                attentionGradients.put(variable.getName(), sum.plus(variable.getDualValue()));
-            }
-            for (Variable variable : parametersCopy.getAll(Parameters.Type.EMBEDDING)) {
-                Batch sum = embeddingGradients.getOrDefault(variable.getName(), new Batch(variable.shape()));
-                embeddingGradients.put(variable.getName(), sum.plus(variable.getDualValue()));
+        @Override
+        public Void call() throws Exception {
+            Precision previous = Precision.set(parameters.getPrecision());
+            try {
+                for (int g = next.getAndIncrement(); g < graphs.size(); g = next.getAndIncrement()) {
+                    try (Arena arena = Arena.enter()) {
+                        update(graphs.get(g));
+                    }
+                }
+            } finally {
+                Precision.set(previous);
             }
-
             return null;
         }
+
+        private void update(List<TrainingExample> examples) {
+            GraphTemplate template = template(examples);
+            loss.add(template.forwardBackward(examples));
+
+            // the template's gradients are overwritten by its next backward pass, so they are scaled in place
+            for (Parameters.Type type : Parameters.Type.values()) {
+                for (Variable variable : template.getParameters().getAll(type)) {
+                    Batch dual = template.getGradient(variable);
+                    if (dual != null) {
+                        Batch update = dual.scaleInPlace(-learningRate / examples.size()).clipInPlace(gradientClippingThreashold);
+                        variable.getValue().addInPlace(update);
+                    }
+                }
+            }
+        }
     }
 
 }
-
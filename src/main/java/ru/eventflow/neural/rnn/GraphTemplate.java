@@ -0,0 +1,298 @@
+package ru.eventflow.neural.rnn;
+
+import ru.eventflow.neural.Arena;
+import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.dataset.TrainingExample;
+import ru.eventflow.neural.graph.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The unrolled encoder-decoder with its loss for one pair of source and target lengths, built and compiled once,
+ * then refilled with the tokens of every example of these lengths.
+ * <p>
+ * Unlike {@link VanillaDecoder}, the shape of the graph must not depend on predictions, so the decoder is always
+ * unrolled for the whole target and EOS (at most {@link VanillaDecoder#MAX_OUTPUT_LENGTH} steps) with teacher forcing.
+ * <p>
+ * With a checkpoint interval k only the memory of every k-th encoder cell (and the hidden states the attention reads,
+ * the last cell keeps its hidden state only) is kept through the forward pass, the rest of the encoder is recomputed k cells at a time during the backward pass.
+ * <p>
+ * A template may take a whole minibatch of padded sequences, s.
+ * {@link #GraphTemplate(NetworkFactory, int, int, int, int)}.
+ * <p>
+ * Not thread-safe, every worker needs its own templates.
+ */
+public class GraphTemplate {
+
+    private final Parameters parameters;
+    private final int batchSize;
+    private final List<Placeholder> sourceInputs = new ArrayList<>();
+    private final List<Placeholder> teacherInputs = new ArrayList<>(); // one-hot, from the second step on
+    private SequenceLoss loss; // of all decoder steps
+    private final List<Node> logits = new ArrayList<>();
+    private final List<List<Node>> checkpoints = new ArrayList<>();
+    // masks of a padded minibatch, s. NetworkFactory#buildEncoder(List, List, List) and Attention
+    private final List<Placeholder> keep = new ArrayList<>();
+    private final List<Placeholder> carry = new ArrayList<>();
+    private Placeholder padding;
+    private Placeholder inverseLengths;
+    private final CompiledGraph plan;
+    private ForkJoinPool pool; // of the level-parallel forward pass, null computes slot by slot
+    private long threshold;
+
+    /**
+     * @param parameters -- a copy, its Variables (sharing the values of the original) become part of the graph
+     */
+    public GraphTemplate(Parameters parameters, int sourceLength, int targetLength) {
+        this(parameters, sourceLength, targetLength, 0);
+    }
+
+    /**
+     * @param checkpointInterval -- encoder cells per recomputed segment, 0 keeps everything
+     */
+    public GraphTemplate(Parameters parameters, int sourceLength, int targetLength, int checkpointInterval) {
+        this(new NetworkFactory(parameters), sourceLength, targetLength, checkpointInterval);
+    }
+
+    /**
+     * @param factory -- of a copy of the parameters, decides which cells are built
+     */
+    public GraphTemplate(NetworkFactory factory, int sourceLength, int targetLength, int checkpointInterval) {
+        this(factory, 1, sourceLength, targetLength, checkpointInterval);
+    }
+
+    /**
+     * A template for minibatches of the given size, with sequences of at most the given lengths. Shorter ones are
+     * padded and masked, so each entry gets the same loss and gradients as in a template of its own, but the whole
+     * minibatch goes through matrix-matrix products. Separate cells only, a template of a single example requires
+     * exact lengths.
+     */
+    public GraphTemplate(NetworkFactory factory, int batchSize, int sourceLength, int targetLength, int checkpointInterval) {
+        if (checkpointInterval < 0) {
+            throw new IllegalArgumentException("Negative checkpoint interval");
+        }
+        this.parameters = factory.getParameters();
+        this.batchSize = batchSize;
+        // the constants of the graph outlive any arena
+        Node loss = Arena.outside(() -> build(factory, sourceLength, targetLength, checkpointInterval));
+        this.plan = GraphCompiler.compile(loss, checkpoints);
+    }
+
+    /**
+     * computes independent slots of the forward pass concurrently, s. {@link CompiledGraph#forward(ForkJoinPool, long)}
+     */
+    public void setParallelForward(ForkJoinPool pool, long threshold) {
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    private Node build(NetworkFactory factory, int sourceLength, int targetLength, int checkpointInterval) {
+        boolean padded = batchSize > 1;
+        for (int i = 0; i < sourceLength; i++) {
+            sourceInputs.add(new Placeholder(new int[]{batchSize, parameters.embeddingSize, 1}));
+            if (padded) {
+                keep.add(new Placeholder(new int[]{batchSize, parameters.hiddenSize, 1}));
+                carry.add(new Placeholder(new int[]{batchSize, parameters.hiddenSize, 1}));
+            }
+        }
+        List<LSTM> encoder = padded ? factory.buildEncoder(sourceInputs, keep, carry) : factory.buildEncoder(sourceInputs);
+
+        List<Node> encoderHiddenStates = new ArrayList<>(sourceLength);
+        LSTM previous = null;
+        for (int i = 0; i < sourceLength; i++) {
+            previous = encoder.get(i);
+            encoderHiddenStates.add(previous.h);
+            if (checkpointInterval > 0 && i == sourceLength - 1) {
+                // the decoder starts with a zero memory, so nothing reads the last memory: it is not part of
+                // the plan (a fused cell's c is a Slice the loss does not depend on) and cannot be a checkpoint
+                checkpoints.add(Collections.singletonList(previous.h));
+            } else if (checkpointInterval > 0 && (i + 1) % checkpointInterval == 0) {
+                checkpoints.add(Arrays.asList(previous.h, previous.c));
+            }
+        }
+
+        if (padded) {
+            padding = new Placeholder(new int[]{batchSize, sourceLength, 1});
+            inverseLengths = new Placeholder(new int[]{batchSize, parameters.hiddenSize, 1});
+        }
+        Attention attention = new Attention(
+                parameters.get(Parameters.Type.ATTENTION, "W_a"),
+                parameters.get(Parameters.Type.ATTENTION, "W_c"),
+                encoderHiddenStates,
+                parameters.hiddenSize,
+                parameters.outputSize,
+                padding,
+                inverseLengths
+        );
+
+        Placeholder none = new Placeholder(new int[]{1, parameters.embeddingSize, 1});
+        none.setValue(Batch.zeros(new int[]{1, parameters.embeddingSize, 1}));
+
+        // the target and EOS
+        int steps = Math.min(targetLength + 1, VanillaDecoder.MAX_OUTPUT_LENGTH);
+        DecoderCell cell = null;
+        for (int i = 0; i < steps; i++) {
+            if (i == 0) {
+                cell = factory.buildInitialDecoderCell(previous, attention, none);
+            } else {
+                Placeholder teacher = new Placeholder(new int[]{batchSize, parameters.onehotSize, 1});
+                teacherInputs.add(teacher);
+                Node input = new Matmul(new int[]{batchSize, parameters.embeddingSize, 1}, parameters.get(Parameters.Type.EMBEDDING, "e"), teacher);
+                cell = factory.buildDecoderCell(cell, attention, input);
+            }
+            logits.add(cell.logits);
+        }
+
+        // the steps of an entry are weighted by one over their number, s. forwardBackward
+        loss = new SequenceLoss(new int[]{1, 1, 1}, logits);
+        return loss;
+    }
+
+    /**
+     * runs both passes for the example, the gradients are available until the next call
+     *
+     * @return the loss
+     */
+    public double forwardBackward(List<String> source, List<String> target) {
+        return forwardBackward(Collections.singletonList(new TrainingExample(source, target)));
+    }
+
+    /**
+     * runs both passes for a minibatch of the size of the template, the gradients are available until the next call
+     *
+     * @return the sum of the losses of the examples
+     */
+    public double forwardBackward(List<TrainingExample> examples) {
+        if (examples.size() != batchSize) {
+            throw new IllegalArgumentException("The minibatch does not fit the template");
+        }
+        int[] steps = new int[batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            int length = examples.get(b).getSource().size();
+            steps[b] = Math.min(examples.get(b).getTarget().size() + 1, VanillaDecoder.MAX_OUTPUT_LENGTH);
+            boolean fits = batchSize > 1
+                    ? length > 0 && length <= sourceInputs.size() && steps[b] <= logits.size()
+                    : length == sourceInputs.size() && steps[b] == logits.size();
+            if (!fits) {
+                throw new IllegalArgumentException("The example does not fit the template");
+            }
+        }
+
+        for (int i = 0; i < sourceInputs.size(); i++) {
+            Batch input = batch(parameters.embeddingSize);
+            for (int b = 0; b < batchSize; b++) {
+                List<String> source = examples.get(b).getSource();
+                if (i < source.size()) {
+                    Batch.arraycopy(parameters.embedding(source.get(i)), 0, input, input.offset(b), parameters.embeddingSize);
+                }
+            }
+            sourceInputs.get(i).setValue(input);
+        }
+        if (batchSize > 1) {
+            fillMasks(examples);
+        }
+
+        for (int i = 0; i < logits.size(); i++) {
+            int[] gold = new int[batchSize];
+            double[] weights = new double[batchSize];
+            Batch teacher = i > 0 ? batch(parameters.onehotSize) : null;
+            for (int b = 0; b < batchSize; b++) {
+                List<String> target = examples.get(b).getTarget();
+                if (i >= steps[b]) {
+                    continue; // padding, weighted by zero
+                }
+                gold[b] = parameters.index(i < target.size() ? target.get(i) : Parameters.EOS);
+                weights[b] = 1.0 / steps[b];
+                if (i > 0) {
+                    // the previous gold token is the input
+                    Batch.arraycopy(parameters.onehot(target.get(i - 1)), 0, teacher, teacher.offset(b), parameters.onehotSize);
+                }
+            }
+            loss.setGold(i, gold);
+            loss.setWeights(i, weights);
+            if (i > 0) {
+                teacherInputs.get(i - 1).setValue(teacher);
+            }
+        }
+
+        double value = (pool != null ? plan.forward(pool, threshold) : plan.forward()).get(0, 0, 0);
+        plan.backward();
+        return value;
+    }
+
+    private void fillMasks(List<TrainingExample> examples) {
+        Batch scores = new Batch(batchSize, sourceInputs.size(), 1, parameters.getPrecision());
+        Batch inverse = batch(parameters.hiddenSize);
+        for (int b = 0; b < batchSize; b++) {
+            double length = examples.get(b).getSource().size();
+            for (int j = 0; j < parameters.hiddenSize; j++) {
+                inverse.put(b, j, 0, 1.0 / length);
+            }
+        }
+        for (int i = 0; i < sourceInputs.size(); i++) {
+            Batch present = batch(parameters.hiddenSize);
+            Batch absent = batch(parameters.hiddenSize);
+            for (int b = 0; b < batchSize; b++) {
+                boolean inside = i < examples.get(b).getSource().size();
+                for (int j = 0; j < parameters.hiddenSize; j++) {
+                    present.put(b, j, 0, inside ? 1 : 0);
+                    absent.put(b, j, 0, inside ? 0 : 1);
+                }
+                scores.put(b, i, 0, inside ? 0 : Double.NEGATIVE_INFINITY);
+            }
+            keep.get(i).setValue(present);
+            carry.get(i).setValue(absent);
+        }
+        padding.setValue(scores);
+        inverseLengths.setValue(inverse);
+    }
+
+    /**
+     * column vectors of the minibatch in the precision of the parameters
+     */
+    private Batch batch(int rows) {
+        return new Batch(batchSize, rows, 1, parameters.getPrecision());
+    }
+
+    /**
+     * @return the gradient w.r.t. one of the template's parameters, null if the graph does not depend on it
+     */
+    public Batch getGradient(Variable variable) {
+        return plan.contains(variable) ? plan.getGradient(variable) : null;
+    }
+
+    public Parameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the most probable token of every step of the last forward pass
+     */
+    public List<String> getPredictions() {
+        return getPredictions(0);
+    }
+
+    /**
+     * @return the most probable token of every step of the last forward pass for an entry of the minibatch,
+     * including the steps of its padding
+     */
+    public List<String> getPredictions(int entry) {
+        List<String> predictions = new ArrayList<>(logits.size());
+        for (Node node : logits) {
+            Batch scores = plan.getValue(node);
+            int offset = scores.offset(entry);
+            int best = 0;
+            for (int i = 1; i < scores.getRows(); i++) {
+                if (scores.getFlat(offset + i) > scores.getFlat(offset + best)) {
+                    best = i;
+                }
+            }
+            predictions.add(parameters.getToken(best));
+        }
+        return predictions;
+    }
+}
@@ -4,6 +4,9 @@ import ru.eventflow.neural.graph.*;
 
 /**
  * An "output" of an LSTM is a vector of hidden_size!
+ * <p>
+ * A cell of separate nodes may process a minibatch, i.e. states of shape [B, hidden_size, 1], the size of the minibatch
+ * is that of the previous hidden state.
  */
 public abstract class LSTM {
 
@@ -11,10 +14,24 @@ public abstract class LSTM {
     public Node h; // hidden state
     public Node c; // memory
 
-    LSTM(Parameters parameters, Parameters.Type type, Node h_previous, Node c_previous, Node x) {
-        int[] h_shape = new int[]{1, parameters.hiddenSize, 1}; // memory cell shape = hidden state shape
+    /**
+     * @param weights -- the stacked weights of the gates for a {@link FusedLSTMCell}, null for separate nodes
+     */
+    LSTM(Parameters parameters, Parameters.Type type, Node weights, Node h_previous, Node c_previous, Node x) {
+        int[] h_shape = new int[]{h_previous.getSize(), parameters.hiddenSize, 1}; // memory cell shape = hidden state shape
 
-        this.x = x; // {1, embedding_size, 1}
+        this.x = x; // {B, embedding_size, 1}
+
+        if (weights != null) {
+            if (h_previous.getSize() != 1) {
+                throw new IllegalArgumentException("A fused cell takes a single example");
+            }
+            Node state = new FusedLSTMCell(new int[]{1, 2 * parameters.hiddenSize, 1},
+                    weights, parameters.get(type, "b_f"), x, h_previous, c_previous);
+            h = new Slice(h_shape, state, 0);
+            c = new Slice(h_shape, state, parameters.hiddenSize);
+            return;
+        }
 
         // input gate
         Node i = new Sigmoid(h_shape, new Sum(h_shape,
@@ -46,4 +63,17 @@ public abstract class LSTM {
         h = new Mul(h_shape, o, new Tanh(h_shape, c));
     }
 
+    /**
+     * carries the previous state over the padding of a minibatch: h = keep * h + carry * h_previous, the same for c
+     *
+     * @param keep  -- ones for the entries of the minibatch having this step, zeros for the padded ones,
+     *              of the shape of the state
+     * @param carry -- 1 - keep
+     */
+    void mask(Node keep, Node carry, LSTM previous) {
+        int[] h_shape = h.shape();
+        h = new Sum(h_shape, new Mul(h_shape, keep, h), new Mul(h_shape, carry, previous.h));
+        c = new Sum(h_shape, new Mul(h_shape, keep, c), new Mul(h_shape, carry, previous.c));
+    }
+
 }
@@ -1,45 +1,153 @@
 package ru.eventflow.neural.rnn;
 
-import ru.eventflow.neural.graph.Node;
-import ru.eventflow.neural.graph.Placeholder;
+import ru.eventflow.neural.graph.*;
 import ru.eventflow.neural.Batch;
 
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
 public class NetworkFactory {
 
     private final Parameters parameters;
+    private final boolean fused;
+    private final boolean projectInputs;
+    private final Map<Parameters.Type, Node> stackedWeights = new EnumMap<>(Parameters.Type.class);
+    private final Map<Parameters.Type, Node> inputWeights = new EnumMap<>(Parameters.Type.class);
+    private final Map<Parameters.Type, Node> recurrentWeights = new EnumMap<>(Parameters.Type.class);
 
     /**
      * Parameters must be copied, so that nodes created with a separate factory be isolated from other nodes (crucial for parallel computation)
      */
     public NetworkFactory(Parameters parameters) {
+        this(parameters, false);
+    }
+
+    /**
+     * @param fused -- build every LSTM step as a single {@link ru.eventflow.neural.graph.FusedLSTMCell}, the stacked
+     *              weights are assembled once per factory and shared by all cells
+     */
+    public NetworkFactory(Parameters parameters, boolean fused) {
+        this(parameters, fused, false);
+    }
+
+    /**
+     * @param projectInputs -- encoders built by {@link #buildEncoder(List)} compute the input projections of all
+     *                      timesteps at once, their cells are fused in any case
+     */
+    public NetworkFactory(Parameters parameters, boolean fused, boolean projectInputs) {
         this.parameters = parameters;
+        this.fused = fused;
+        this.projectInputs = projectInputs;
+    }
+
+    /**
+     * The encoder over the whole input sequence.
+     * <p>
+     * With projected inputs, W_x x [x_1 ... x_n] gives the pre-activations of all gates for all timesteps as a single
+     * matrix-matrix product, since they do not depend on the recurrence. Each cell then gets its column and only
+     * multiplies the previous hidden state by the stacked U_*.
+     */
+    public List<LSTM> buildEncoder(List<? extends Node> inputs) {
+        return buildEncoder(inputs, null, null);
+    }
+
+    /**
+     * The encoder over a padded minibatch of shape [B, embeddingSize, 1] per timestep, a padded entry carries its
+     * state over, s. {@link LSTM#mask(Node, Node, LSTM)}, so that the last cell holds the state of every sequence.
+     * Separate cells only.
+     *
+     * @param keep  -- of every timestep, ones for the entries having it, null if nothing is padded
+     * @param carry -- 1 - keep of every timestep
+     */
+    public List<LSTM> buildEncoder(List<? extends Node> inputs, List<? extends Node> keep, List<? extends Node> carry) {
+        List<LSTM> cells = new ArrayList<>(inputs.size());
+        if (inputs.get(0).getSize() != 1 && (fused || projectInputs)) {
+            throw new IllegalArgumentException("Fused cells take a single example");
+        }
+        if (!projectInputs) {
+            for (Node input : inputs) {
+                if (cells.isEmpty()) {
+                    cells.add(buildInitialEncoderCell(input));
+                    continue;
+                }
+                LSTM previous = cells.get(cells.size() - 1);
+                LSTM cell = buildEncoderCell(previous, input);
+                if (keep != null) {
+                    cell.mask(keep.get(cells.size()), carry.get(cells.size()), previous);
+                }
+                cells.add(cell);
+            }
+            return cells;
+        }
+
+        int n = inputs.size();
+        Node packed = new Pack(new int[]{1, parameters.embeddingSize, n}, inputs.toArray(new Node[n]));
+        Node projections = new Matmul(new int[]{1, 4 * parameters.hiddenSize, n},
+                inputWeights.computeIfAbsent(Parameters.Type.ENCODER, t -> stack(t, "W_i", "W_f", "W_o", "W_c")),
+                packed);
+        Node weights = recurrentWeights.computeIfAbsent(Parameters.Type.ENCODER, t -> stack(t, "U_i", "U_f", "U_o", "U_c"));
+        for (int t = 0; t < n; t++) {
+            Node projection = new Unpack(new int[]{1, 4 * parameters.hiddenSize, 1}, projections, t);
+            LSTM previous = t == 0 ? null : cells.get(t - 1);
+            cells.add(new EncoderCell(parameters, weights,
+                    previous == null ? h0(1) : previous.h, previous == null ? c0(1) : previous.c, projection));
+        }
+        return cells;
     }
 
     public EncoderCell buildInitialEncoderCell(Node input) {
-        return new EncoderCell(parameters, h0(), c0(), input);
+        return new EncoderCell(parameters, weights(Parameters.Type.ENCODER), h0(input.getSize()), c0(input.getSize()), input);
     }
 
     public EncoderCell buildEncoderCell(LSTM previous, Node input) {
-        return new EncoderCell(parameters, previous.h, previous.c, input);
+        return new EncoderCell(parameters, weights(Parameters.Type.ENCODER), previous.h, previous.c, input);
     }
 
     public DecoderCell buildInitialDecoderCell(LSTM previous, Attention attention, Node input) {
-        return new DecoderCell(parameters, attention, previous.h, c0(), input);
+        return new DecoderCell(parameters, attention, weights(Parameters.Type.DECODER), previous.h, c0(previous.h.getSize()), input);
     }
 
     public DecoderCell buildDecoderCell(LSTM previous, Attention attention, Node input) {
-        return new DecoderCell(parameters, attention, previous.h, previous.c, input);
+        return new DecoderCell(parameters, attention, weights(Parameters.Type.DECODER), previous.h, previous.c, input);
+    }
+
+    /**
+     * [W_i U_i; W_f U_f; W_o U_o; W_c U_c] of fused cells, null otherwise
+     */
+    private Node weights(Parameters.Type type) {
+        if (!fused) {
+            return null;
+        }
+        return stackedWeights.computeIfAbsent(type, t -> stack(t, "W_i", "U_i", "W_f", "U_f", "W_o", "U_o", "W_c", "U_c"));
+    }
+
+    /**
+     * the parameters of the four gates as rows of blocks, one or two blocks per gate
+     */
+    private Node stack(Parameters.Type type, String... names) {
+        Node[] blocks = new Node[names.length];
+        for (int k = 0; k < names.length; k++) {
+            blocks[k] = parameters.get(type, names[k]);
+        }
+        int blockColumns = names.length / 4;
+        int columns = 0;
+        for (int k = 0; k < blockColumns; k++) {
+            columns += blocks[k].getColumns();
+        }
+        return new BlockMatrix(new int[]{1, 4 * parameters.hiddenSize, columns}, blockColumns, blocks);
     }
 
-    private Placeholder h0() {
-        Placeholder h0 = new Placeholder(new int[]{1, parameters.hiddenSize, 1});
-        h0.setValue(Batch.zeros(new int[]{1, parameters.hiddenSize, 1}));
+    private Placeholder h0(int size) {
+        Placeholder h0 = new Placeholder(new int[]{size, parameters.hiddenSize, 1});
+        h0.setValue(Batch.zeros(new int[]{size, parameters.hiddenSize, 1}));
         return h0;
     }
 
-    private Placeholder c0() {
-        Placeholder c0 = new Placeholder(new int[]{1, parameters.hiddenSize, 1});
-        c0.setValue(Batch.zeros(new int[]{1, parameters.hiddenSize, 1}));
+    private Placeholder c0(int size) {
+        Placeholder c0 = new Placeholder(new int[]{size, parameters.hiddenSize, 1});
+        c0.setValue(Batch.zeros(new int[]{size, parameters.hiddenSize, 1}));
         return c0;
     }
 
@@ -1,14 +1,15 @@
 package ru.eventflow.neural.rnn;
 
-import Jama.Matrix;
 import ru.eventflow.neural.graph.Variable;
 import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.Precision;
 
 import java.io.Serializable;
 import java.util.*;
 
 public class Parameters implements Serializable {
 
+    private static final long serialVersionUID = 2L; // s. PersistenceUtils#FORMAT
     public static final String EOS = "</s>";
 
     /**
@@ -29,6 +30,11 @@ public class Parameters implements Serializable {
 
     int onehotSize;
 
+    /**
+     * precision of the values, snapshots keep it
+     */
+    private final Precision precision;
+
     private final Map<String, Variable> encoderParameters = new HashMap<>();
     private final Map<String, Variable> decoderParameters = new HashMap<>();
     private final Map<String, Variable> attentionParameters = new HashMap<>();
@@ -45,6 +51,11 @@ public class Parameters implements Serializable {
     private final Map<String, Integer> onehot;
 
     public Parameters(int embedding_size, int hidden_size, List<String> tokens) {
+        this(embedding_size, hidden_size, tokens, Precision.DOUBLE);
+    }
+
+    public Parameters(int embedding_size, int hidden_size, List<String> tokens, Precision precision) {
+        this.precision = precision;
         this.embeddingSize = embedding_size;
         this.outputSize = embedding_size;
         this.hiddenSize = hidden_size;
@@ -54,7 +65,7 @@ public class Parameters implements Serializable {
         populate(decoderParameters);
         populateAttentionParameters();
 
-        embeddings = new Variable("e", new int[]{1, embedding_size, onehotSize}, Batch.rand(new int[]{1, embedding_size, onehotSize}));
+        embeddings = new Variable("e", new int[]{1, embedding_size, onehotSize}, Batch.rand(new int[]{1, embedding_size, onehotSize}, precision));
         this.tokens = new ArrayList<>(tokens);
         onehot = new HashMap<>(onehotSize);
 
@@ -69,20 +80,37 @@ public class Parameters implements Serializable {
         }
 
         int rowIndex = onehot.get(t);
-        Batch vector = new Batch(new int[]{1, onehotSize, 1});
-        vector.put(new int[]{0, rowIndex, 0}, 1.0);
+        Batch vector = new Batch(new int[]{1, onehotSize, 1}, precision);
+        vector.put(0, rowIndex, 0, 1.0);
         return vector;
     }
 
+    /**
+     * @return the row of the token in one-hot vectors, i.e. its class index
+     */
+    public int index(String t) {
+        Integer index = onehot.get(t);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown token " + t);
+        }
+        return index;
+    }
+
+    public String getToken(int index) {
+        return tokens.get(index);
+    }
+
     public Batch embedding(String t) {
         if (!onehot.containsKey(t)) {
             System.err.println(t);
         }
 
         int column = onehot.get(t);
-        Matrix m = embeddings.getValue().get(0).getMatrix(0, embeddingSize - 1, column, column);
-        Batch vector = new Batch(new int[]{1, embeddingSize, 1});
-        vector.put(0, m);
+        Batch e = embeddings.getValue();
+        Batch vector = new Batch(new int[]{1, embeddingSize, 1}, precision);
+        for (int j = 0; j < embeddingSize; j++) {
+            vector.put(0, j, 0, e.get(0, j, column));
+        }
         return vector;
     }
 
@@ -91,12 +119,11 @@ public class Parameters implements Serializable {
             throw new IllegalArgumentException("Invalid distribution");
         }
 
-        double[] probabilities = distribution.get(0).getColumnPackedCopy();
         double max = 0;
         int i_max = 0;
-        for (int i = 0; i < probabilities.length; i++) {
-            if (probabilities[i] > max) {
-                max = probabilities[i];
+        for (int i = 0; i < distribution.length(); i++) {
+            if (distribution.getFlat(i) > max) {
+                max = distribution.getFlat(i);
                 i_max = i;
             }
         }
@@ -107,7 +134,7 @@ public class Parameters implements Serializable {
      * A copy is needed for detaching one network from the other. The values are still shared, though, as they don't change.
      */
     public Parameters copy() {
-        Parameters copy = new Parameters(embeddingSize, hiddenSize, tokens);
+        Parameters copy = new Parameters(embeddingSize, hiddenSize, tokens, precision);
         for (Map.Entry<String, Variable> entry : encoderParameters.entrySet()) {
             copy.encoderParameters.put(entry.getKey(), entry.getValue().copy());
         }
@@ -122,32 +149,36 @@ public class Parameters implements Serializable {
     }
 
     private void populateAttentionParameters() {
-        attentionParameters.put("W_a", new Variable("W_a", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize})));
-        attentionParameters.put("W_c", new Variable("W_c", new int[]{1, outputSize, 2 * hiddenSize}, Batch.xavier(new int[]{1, outputSize, 2 * hiddenSize})));
-        attentionParameters.put("W_y", new Variable("W_y", new int[]{1, outputSize, outputSize}, Batch.xavier(new int[]{1, outputSize, outputSize})));
+        attentionParameters.put("W_a", new Variable("W_a", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize}, precision)));
+        attentionParameters.put("W_c", new Variable("W_c", new int[]{1, outputSize, 2 * hiddenSize}, Batch.xavier(new int[]{1, outputSize, 2 * hiddenSize}, precision)));
+        attentionParameters.put("W_y", new Variable("W_y", new int[]{1, outputSize, outputSize}, Batch.xavier(new int[]{1, outputSize, outputSize}, precision)));
     }
 
     private void populate(Map<String, Variable> parameters) {
         // weights for the input gate
-        parameters.put("W_i", new Variable("W_i", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize})));
-        parameters.put("U_i", new Variable("U_i", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize})));
+        parameters.put("W_i", new Variable("W_i", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize}, precision)));
+        parameters.put("U_i", new Variable("U_i", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize}, precision)));
 
         // weights and bias for the forget gate
-        parameters.put("W_f", new Variable("W_f", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize})));
-        parameters.put("U_f", new Variable("U_f", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize})));
-        parameters.put("b_f", new Variable("b_f", new int[]{1, hiddenSize, 1}, Batch.ones(new int[]{1, hiddenSize, 1}))); // (Jozefowicz et al. 2015)
+        parameters.put("W_f", new Variable("W_f", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize}, precision)));
+        parameters.put("U_f", new Variable("U_f", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize}, precision)));
+        parameters.put("b_f", new Variable("b_f", new int[]{1, hiddenSize, 1}, Batch.ones(new int[]{1, hiddenSize, 1}, precision))); // (Jozefowicz et al. 2015)
 
         // weights for the memory computation
-        parameters.put("W_c", new Variable("W_c", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize})));
-        parameters.put("U_c", new Variable("U_c", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize})));
+        parameters.put("W_c", new Variable("W_c", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize}, precision)));
+        parameters.put("U_c", new Variable("U_c", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize}, precision)));
 
         //  weights for the output gate
-        parameters.put("W_o", new Variable("W_o", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize})));
-        parameters.put("U_o", new Variable("U_o", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize})));
+        parameters.put("W_o", new Variable("W_o", new int[]{1, hiddenSize, embeddingSize}, Batch.xavier(new int[]{1, hiddenSize, embeddingSize}, precision)));
+        parameters.put("U_o", new Variable("U_o", new int[]{1, hiddenSize, hiddenSize}, Batch.xavier(new int[]{1, hiddenSize, hiddenSize}, precision)));
 
         // weights and bias for the decoder cells
-        parameters.put("W_y", new Variable("W_y", new int[]{1, outputSize, hiddenSize}, Batch.xavier(new int[]{1, outputSize, hiddenSize})));
-        parameters.put("b_y", new Variable("b_y", new int[]{1, outputSize, 1}, Batch.xavier(new int[]{1, outputSize, 1})));
+        parameters.put("W_y", new Variable("W_y", new int[]{1, outputSize, hiddenSize}, Batch.xavier(new int[]{1, outputSize, hiddenSize}, precision)));
+        parameters.put("b_y", new Variable("b_y", new int[]{1, outputSize, 1}, Batch.xavier(new int[]{1, outputSize, 1}, precision)));
+    }
+
+    public Precision getPrecision() {
+        return precision;
     }
 
     public Variable get(Type type, String name) {
@@ -1,7 +1,9 @@
 package ru.eventflow.neural.rnn;
 
 import ru.eventflow.neural.Batch;
+import ru.eventflow.neural.graph.GraphExecutor;
 import ru.eventflow.neural.graph.Matmul;
+import ru.eventflow.neural.graph.NoGrad;
 import ru.eventflow.neural.graph.Node;
 import ru.eventflow.neural.graph.Placeholder;
 
@@ -16,6 +18,7 @@ public class VanillaDecoder implements Decoder {
     public static final int MAX_OUTPUT_LENGTH = 2;
     private Parameters parameters;
     private List<String> teacher;
+    private List<Node> logits = new ArrayList<>();
 
     public VanillaDecoder(Parameters parameters, List<String> teacher) {
         this.parameters = parameters;
@@ -32,6 +35,9 @@ public class VanillaDecoder implements Decoder {
             encoderHiddenStates.add(cell.h);
         }
 
+        // the encoder is evaluated without recursion, so that decoding steps do not recurse through the whole input
+        new GraphExecutor(encoder.get(encoder.size() - 1).h).forward();
+
         // attention over input sequence
         Parameters localParameters = factory.getParameters();
         Attention attention = new Attention(
@@ -86,6 +92,9 @@ public class VanillaDecoder implements Decoder {
             }
 
 
+            // every step is scored, including the one which predicted EOS
+            logits.add(cell.logits);
+
             // get the prediction -- loss is NOT computed here
             Batch distribution = cell.y_hat.getValue();
             s = parameters.decode(distribution);
@@ -96,15 +105,16 @@ public class VanillaDecoder implements Decoder {
                 outputs.add(cell.output);
                 y_hats.add(cell.y_hat);
 
-                sb.append(String.format("%-6s", s));
-                sb.append(" ");
-
                 // print distribution
-                for (int i = 0; i < distribution.getRows(); i++) {
-                    sb.append(String.format("%.6f ", distribution.get(new int[]{0, i, 0})));
+                if (verbose) {
+                    sb.append(String.format("%-6s", s));
+                    sb.append(" ");
+                    for (int i = 0; i < distribution.getRows(); i++) {
+                        sb.append(String.format("%.6f ", distribution.get(0, i, 0)));
+                    }
+                    sb.append("\n");
+                    distribution.print(s);
                 }
-                sb.append("\n");
-                distribution.print(s);
             }
 
         } while (!s.equals(Parameters.EOS) && outputPosition < MAX_OUTPUT_LENGTH);
@@ -116,9 +126,9 @@ public class VanillaDecoder implements Decoder {
             List<Node> attentionDistributions = attention.getDistributions();
             StringBuilder sb2 = new StringBuilder();
             for (Node a : attentionDistributions) {
-                double[] dist = a.getValue().get(0).getColumnPackedCopy();
-                for (double d : dist) {
-                    sb2.append(String.format("%.6f ", d));
+                Batch dist = a.getValue();
+                for (int n = 0; n < dist.length(); n++) {
+                    sb2.append(String.format("%.6f ", dist.getFlat(n)));
                 }
                 sb2.append("\n");
             }
@@ -129,4 +139,26 @@ public class VanillaDecoder implements Decoder {
         return y_hats;
     }
 
+    /**
+     * decodes without teacher forcing for inference only, the graph stores no partials, s. {@link NoGrad}
+     *
+     * @return the predicted tokens without EOS
+     */
+    public List<String> predict(NetworkFactory factory, List<LSTM> encoder) {
+        try (NoGrad scope = NoGrad.enter()) {
+            List<String> tokens = new ArrayList<>();
+            for (Node y_hat : decode(factory, encoder, false, false)) {
+                tokens.add(parameters.decode(y_hat.getValue()));
+            }
+            return tokens;
+        }
+    }
+
+    /**
+     * @return unnormalized scores of every decoded step (the last one may have predicted EOS), filled by {@link #decode}
+     */
+    public List<Node> getLogits() {
+        return logits;
+    }
+
 }
@@ -0,0 +1,48 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ArenaTest {
+
+    private static final int[] SHAPE = new int[]{1, 7, 3};
+
+    @Test
+    public void testArraysAreReusedAfterClose() {
+        double[] first;
+        try (Arena arena = Arena.enter()) {
+            first = Batch.ones(SHAPE).getData();
+        }
+        try (Arena arena = Arena.enter()) {
+            Batch batch = Batch.zeros(SHAPE);
+            assertSame(first, batch.getData());
+            assertEquals(0, batch.get(0, 6, 2), 0.0); // cleared
+            assertNotSame(first, Batch.zeros(SHAPE).getData());
+        }
+        assertNotSame(first, Batch.zeros(SHAPE).getData()); // no arena entered
+    }
+
+    @Test
+    public void testOutsideIsNotReleased() {
+        Batch kept;
+        try (Arena arena = Arena.enter()) {
+            kept = Arena.outside(() -> Batch.zeros(SHAPE)).fill(5);
+        }
+        try (Arena arena = Arena.enter()) {
+            for (int n = 0; n < 10; n++) {
+                assertNotSame(kept.getData(), Batch.zeros(SHAPE).getData());
+            }
+        }
+        assertEquals(5, kept.get(0, 0, 0), 0.0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoNesting() {
+        try (Arena arena = Arena.enter()) {
+            Arena.enter();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BatchInPlaceTest {
+
+    private static final int[] SHAPE = new int[]{2, 3, 1};
+
+    @Test
+    public void testInPlaceOperationsAgreeWithAllocatingOnes() {
+        Batch a = Batch.rand(SHAPE);
+        Batch b = Batch.rand(SHAPE);
+
+        Batch sum = a.plus(b);
+        Batch product = a.mul(b);
+        Batch scaled = a.times(-0.5);
+        Batch axpy = a.plus(b.times(3));
+
+        assertBatchEquals(sum, a.copy().addInPlace(b));
+        assertBatchEquals(product, a.copy().mulInPlace(b));
+        assertBatchEquals(scaled, a.copy().scaleInPlace(-0.5));
+        assertBatchEquals(axpy, a.copy().axpy(3, b));
+        assertBatchEquals(a.clip(0.1), a.copy().clipInPlace(0.1));
+    }
+
+    @Test
+    public void testCopyInto() {
+        Batch a = Batch.rand(SHAPE);
+        Batch dest = Batch.zeros(SHAPE);
+
+        assertSame(dest, a.copyInto(dest));
+        assertBatchEquals(a, dest);
+
+        a.fill(7);
+        assertEquals(7, a.get(1, 2, 0), 0.0);
+        assertEquals(1, Batch.zeros(SHAPE).addInPlace(Batch.ones(SHAPE)).get(0, 0, 0), 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testShapeMismatch() {
+        Batch.zeros(SHAPE).addInPlace(Batch.zeros(new int[]{2, 1, 3}));
+    }
+
+    private static void assertBatchEquals(Batch expected, Batch actual) {
+        assertArrayEquals(expected.shape(), actual.shape());
+        for (int n = 0; n < expected.length(); n++) {
+            assertEquals(expected.getFlat(n), actual.getFlat(n), 1e-12);
+        }
+    }
+}
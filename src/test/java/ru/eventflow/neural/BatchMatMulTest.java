@@ -86,4 +86,67 @@ public class BatchMatMulTest {
         assertEquals(2, result.getColumns());
     }
 
+    @Test
+    public void testTimesAgreesWithJama() {
+        Batch a = Batch.rand(new int[]{2, 4, 3});
+        Batch b = Batch.rand(new int[]{2, 3, 5});
+
+        Batch result = a.times(b);
+
+        for (int i = 0; i < 2; i++) {
+            Matrix expected = a.get(i).times(b.get(i));
+            for (int j = 0; j < 4; j++) {
+                for (int k = 0; k < 5; k++) {
+                    assertEquals(expected.get(j, k), result.get(i, j, k), 1e-12);
+                }
+            }
+        }
+    }
+
+    /**
+     * a matrix shared by a minibatch of vectors, and the gradient of the matrix summed over the minibatch
+     */
+    @Test
+    public void testBroadcastAgreesWithJama() {
+        Batch w = Batch.rand(new int[]{1, 4, 3});
+        Batch x = Batch.rand(new int[]{5, 3, 1});
+        Batch g = Batch.rand(new int[]{5, 4, 1});
+
+        Batch product = w.times(x);
+        Batch transposed = w.transposeTimes(g);
+        Batch sum = g.timesInto(false, x, true, Batch.zeros(new int[]{1, 4, 3}), false);
+
+        Matrix expectedSum = new Matrix(4, 3);
+        for (int i = 0; i < 5; i++) {
+            Matrix expected = w.get(0).times(x.get(i));
+            Matrix expectedTransposed = w.get(0).transpose().times(g.get(i));
+            for (int j = 0; j < 4; j++) {
+                assertEquals(expected.get(j, 0), product.get(i, j, 0), 1e-12);
+            }
+            for (int j = 0; j < 3; j++) {
+                assertEquals(expectedTransposed.get(j, 0), transposed.get(i, j, 0), 1e-12);
+            }
+            expectedSum.plusEquals(g.get(i).times(x.get(i).transpose()));
+        }
+        for (int j = 0; j < 4; j++) {
+            for (int k = 0; k < 3; k++) {
+                assertEquals(expectedSum.get(j, k), sum.get(0, j, k), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testSlicesAreCopied() {
+        Batch a = Batch.zeros(new int[]{2, 2, 2});
+        Matrix m = Matrix.identity(2, 2);
+        a.put(1, m);
+        m.set(0, 0, 5);
+
+        assertEquals(0.0, a.get(0, 0, 0), 0.0);
+        assertEquals(1.0, a.get(1, 0, 0), 0.0);
+        assertEquals(1.0, a.get(1).get(1, 1), 0.0);
+        assertEquals(4, a.getSliceStride());
+        assertEquals(a.get(1, 1, 1), a.getFlat(a.offset(1) + a.getRowStride() + 1), 0.0);
+    }
+
 }
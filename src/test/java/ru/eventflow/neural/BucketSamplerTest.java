@@ -0,0 +1,111 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.dataset.BucketSampler;
+import ru.eventflow.neural.dataset.TrainingExample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BucketSamplerTest {
+
+    /**
+     * every example once per pass, the lengths of a minibatch within two neighbouring buckets
+     */
+    @Test
+    public void testPasses() {
+        List<TrainingExample> examples = new ArrayList<>();
+        for (int length = 2; length <= 40; length++) {
+            for (int n = 0; n < 20; n++) {
+                examples.add(new TrainingExample(Collections.nCopies(length, "a"), Collections.nCopies(1 + n % 3, "b")));
+            }
+        }
+        BucketSampler sampler = new BucketSampler(examples, 10, 0.1, new Random(1));
+
+        for (int pass = 0; pass < 2; pass++) {
+            Map<TrainingExample, Integer> seen = new IdentityHashMap<>();
+            while (seen.size() < examples.size()) {
+                List<TrainingExample> minibatch = sampler.next();
+                assertEquals(10, minibatch.size());
+                int shortest = minibatch.get(0).getSource().size();
+                int longest = minibatch.get(minibatch.size() - 1).getSource().size();
+                assertTrue(longest < 1.1 * 1.1 * shortest);
+                for (TrainingExample example : minibatch) {
+                    assertEquals(null, seen.put(example, pass));
+                }
+            }
+        }
+    }
+
+    /**
+     * a long tail of single examples: the buckets of a minibatch are consecutive ones and those of different
+     * minibatches do not interleave, though a minibatch of the tail spans more than two of them
+     */
+    @Test
+    public void testSparseBuckets() {
+        List<TrainingExample> examples = new ArrayList<>();
+        for (int length = 2; length <= 20; length++) {
+            for (int n = 0; n < 20; n++) {
+                examples.add(new TrainingExample(Collections.nCopies(length, "a"), Collections.singletonList("b")));
+            }
+        }
+        for (int length = 100; length <= 400; length += 10) {
+            examples.add(new TrainingExample(Collections.nCopies(length, "a"), Collections.singletonList("b")));
+        }
+        BucketSampler sampler = new BucketSampler(examples, 10, 0.1, new Random(1));
+
+        List<int[]> spans = new ArrayList<>();
+        int widest = 0;
+        for (List<TrainingExample> minibatch : sampler.nextPass()) {
+            int first = bucket(minibatch.get(0));
+            int last = bucket(minibatch.get(minibatch.size() - 1));
+            for (TrainingExample example : minibatch) {
+                assertTrue(first <= bucket(example) && bucket(example) <= last);
+            }
+            for (int[] span : spans) {
+                assertTrue(last <= span[0] || first >= span[1]);
+            }
+            spans.add(new int[]{first, last});
+            widest = Math.max(widest, last - first);
+        }
+        assertTrue(widest > 1);
+    }
+
+    private static int bucket(TrainingExample example) {
+        return (int) Math.floor(Math.log(example.getSource().size()) / Math.log1p(0.1));
+    }
+
+    /**
+     * a whole pass at once covers every example, passes are counted either way
+     */
+    @Test
+    public void testNextPass() {
+        List<TrainingExample> examples = new ArrayList<>();
+        for (int length = 1; length <= 25; length++) {
+            examples.add(new TrainingExample(Collections.nCopies(length, "a"), Collections.singletonList("b")));
+        }
+        BucketSampler sampler = new BucketSampler(examples, 4, 0.1, new Random(1));
+
+        sampler.next();
+        assertEquals(1, sampler.getPass());
+        Map<TrainingExample, Integer> seen = new IdentityHashMap<>();
+        List<List<TrainingExample>> pass = sampler.nextPass();
+        assertEquals(7, pass.size());
+        for (List<TrainingExample> minibatch : pass) {
+            for (TrainingExample example : minibatch) {
+                assertEquals(null, seen.put(example, 2));
+            }
+        }
+        assertEquals(examples.size(), seen.size());
+        assertEquals(2, sampler.getPass());
+        sampler.next();
+        assertEquals(3, sampler.getPass());
+    }
+}
@@ -0,0 +1,95 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.graph.*;
+import ru.eventflow.neural.rnn.GraphTemplate;
+import ru.eventflow.neural.rnn.LSTM;
+import ru.eventflow.neural.rnn.NetworkFactory;
+import ru.eventflow.neural.rnn.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * the fused cell against the cell of separate nodes, with the same parameters
+ */
+public class FusedLSTMCellTest {
+
+    private final List<String> tokens = Arrays.asList("a", "b", "c", Parameters.EOS);
+
+    @Test
+    public void testSameGradients() {
+        Parameters parameters = new Parameters(3, 5, tokens);
+
+        Node loss = buildEncoderLoss(new NetworkFactory(parameters));
+        GraphExecutor executor = new GraphExecutor(loss);
+        double value = executor.forward().get(0, 0, 0);
+        executor.backward();
+
+        for (boolean projectInputs : new boolean[]{false, true}) {
+            Parameters copy = parameters.copy();
+            GraphExecutor fusedExecutor = new GraphExecutor(buildEncoderLoss(new NetworkFactory(copy, true, projectInputs)));
+            assertEquals(value, fusedExecutor.forward().get(0, 0, 0), 1e-12);
+            fusedExecutor.backward();
+
+            for (Variable variable : parameters.getAll(Parameters.Type.ENCODER)) {
+                Batch expected = variable.getDualValue();
+                Batch actual = copy.get(Parameters.Type.ENCODER, variable.getName()).getDualValue();
+                for (int n = 0; n < expected.length(); n++) {
+                    assertEquals(variable.getName(), expected.getFlat(n), actual.getFlat(n), 1e-12);
+                }
+            }
+        }
+    }
+
+    /**
+     * the whole encoder-decoder compiled, with and without checkpoints and input projections
+     */
+    @Test
+    public void testSameGradientsCompiled() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+        List<String> source = Arrays.asList("a", "b", "c", "a");
+        List<String> target = Arrays.asList("c", "b");
+
+        GraphTemplate template = new GraphTemplate(parameters.copy(), source.size(), target.size());
+        double loss = template.forwardBackward(source, target);
+
+        for (int variant = 0; variant < 4; variant++) {
+            NetworkFactory factory = new NetworkFactory(parameters.copy(), true, variant >= 2);
+            GraphTemplate fused = new GraphTemplate(factory, source.size(), target.size(), 2 * (variant % 2));
+            assertEquals(loss, fused.forwardBackward(source, target), 1e-12);
+
+            for (Parameters.Type type : Parameters.Type.values()) {
+                for (Variable variable : template.getParameters().getAll(type)) {
+                    Batch expected = template.getGradient(variable);
+                    Batch actual = fused.getGradient(fused.getParameters().get(type, variable.getName()));
+                    if (expected == null) {
+                        continue;
+                    }
+                    for (int n = 0; n < expected.length(); n++) {
+                        assertEquals(variable.getName(), expected.getFlat(n), actual.getFlat(n), 1e-12);
+                    }
+                }
+            }
+        }
+    }
+
+    private static Node buildEncoderLoss(NetworkFactory factory) {
+        Parameters parameters = factory.getParameters();
+        List<Placeholder> inputs = new ArrayList<>();
+        for (String token : Arrays.asList("a", "c", "b")) {
+            Placeholder input = new Placeholder(new int[]{1, 3, 1});
+            input.setValue(parameters.embedding(token));
+            inputs.add(input);
+        }
+        List<LSTM> encoder = factory.buildEncoder(inputs);
+        LSTM cell = encoder.get(encoder.size() - 1);
+        Placeholder y = new Placeholder(new int[]{1, 5, 1});
+        y.setValue(Batch.ones(new int[]{1, 5, 1}));
+        // both outputs of the last cell contribute
+        return new MSELoss(new int[]{1, 1, 1}, y, new Sum(new int[]{1, 5, 1}, cell.h, cell.c));
+    }
+}
@@ -0,0 +1,72 @@
+package ru.eventflow.neural;
+
+import Jama.Matrix;
+import org.junit.Test;
+import ru.eventflow.neural.kernels.Gemm;
+
+import static org.junit.Assert.assertEquals;
+
+public class GemmTest {
+
+    /**
+     * matrix-vector, small (naive), blocked with edge tiles, and large enough to be split across threads
+     */
+    private static final int[][] SHAPES = new int[][]{
+            {7, 1, 5},
+            {3, 4, 5},
+            {37, 41, 29},
+            {130, 70, 260},
+            {300, 200, 150}
+    };
+
+    @Test
+    public void testAgreesWithJama() {
+        for (int[] shape : SHAPES) {
+            int m = shape[0];
+            int n = shape[1];
+            int k = shape[2];
+            for (boolean transA : new boolean[]{false, true}) {
+                for (boolean transB : new boolean[]{false, true}) {
+                    Matrix a = Matrix.random(m, k);
+                    Matrix b = Matrix.random(k, n);
+                    double[] aData = flatten(transA ? a.transpose() : a);
+                    double[] bData = flatten(transB ? b.transpose() : b);
+
+                    double[] c = new double[m * n];
+                    Gemm.gemm(transA, transB, m, n, k, aData, 0, bData, 0, c, 0, false);
+                    assertMatrixEquals(a.times(b), c);
+
+                    // accumulating adds one more product
+                    Gemm.gemm(transA, transB, m, n, k, aData, 0, bData, 0, c, 0, true);
+                    assertMatrixEquals(a.times(b).times(2), c);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTransposedProducts() {
+        Batch a = Batch.rand(new int[]{2, 6, 3});
+        Batch b = Batch.rand(new int[]{2, 6, 4});
+        Batch c = Batch.rand(new int[]{2, 5, 3});
+
+        Batch atb = a.transposeTimes(b);
+        Batch act = a.timesTranspose(c);
+        for (int i = 0; i < 2; i++) {
+            assertMatrixEquals(a.get(i).transpose().times(b.get(i)), flatten(atb.get(i)));
+            assertMatrixEquals(a.get(i).times(c.get(i).transpose()), flatten(act.get(i)));
+        }
+    }
+
+    private static double[] flatten(Matrix matrix) {
+        return matrix.getRowPackedCopy();
+    }
+
+    private static void assertMatrixEquals(Matrix expected, double[] actual) {
+        double[] flat = flatten(expected);
+        assertEquals(flat.length, actual.length);
+        for (int n = 0; n < flat.length; n++) {
+            assertEquals(flat[n], actual[n], 1e-9);
+        }
+    }
+}
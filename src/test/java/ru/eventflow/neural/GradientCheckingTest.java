@@ -1,9 +1,9 @@
 package ru.eventflow.neural;
 
 import org.junit.Test;
-import ru.eventflow.neural.graph.Node;
-import ru.eventflow.neural.graph.ReLU;
-import ru.eventflow.neural.graph.Variable;
+import ru.eventflow.neural.graph.*;
+
+import static org.junit.Assert.assertEquals;
 
 public class GradientCheckingTest {
 
@@ -37,4 +37,115 @@ public class GradientCheckingTest {
         gradApprox.print("grad approx");
     }
 
+    @Test
+    public void testMatmulGradientsWithSymmetricDifferences() {
+        for (boolean transposed : new boolean[]{false, true}) {
+            Batch w = Batch.rand(transposed ? new int[]{1, 3, 4} : new int[]{1, 4, 3});
+            Batch a = Batch.rand(new int[]{1, 3, 1});
+            Batch g = Batch.rand(new int[]{1, 4, 1});
+
+            Variable wv = new Variable(w.shape(), w);
+            Variable av = new Variable(a.shape(), a);
+            matmulLoss(wv, av, g, transposed).getValue();
+
+            double epsilon = 0.0001;
+            for (Variable variable : new Variable[]{wv, av}) {
+                Batch analytic = variable.getDualValue();
+                Batch value = variable.getValue();
+                for (int n = 0; n < value.length(); n++) {
+                    double original = value.getFlat(n);
+                    value.putFlat(n, original + epsilon);
+                    double plus = matmulLoss(new Variable(w.shape(), w), new Variable(a.shape(), a), g, transposed).getValue().getFlat(0);
+                    value.putFlat(n, original - epsilon);
+                    double minus = matmulLoss(new Variable(w.shape(), w), new Variable(a.shape(), a), g, transposed).getValue().getFlat(0);
+                    value.putFlat(n, original);
+                    assertEquals((plus - minus) / 2 / epsilon, analytic.getFlat(n), 1e-6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testActivationGradientsWithSymmetricDifferences() {
+        for (String function : new String[]{"sigmoid", "tanh", "relu", "exp", "softmax"}) {
+            Batch x = Batch.rand(new int[]{2, 5, 1}).times(4).plus(Batch.ones(new int[]{2, 5, 1}).times(-2));
+            Batch g = Batch.rand(new int[]{2, 5, 1});
+
+            Variable xv = new Variable(x.shape(), x);
+            activationLoss(function, xv, g).getValue();
+            Batch analytic = xv.getDualValue();
+
+            double epsilon = 0.0001;
+            for (int n = 0; n < x.length(); n++) {
+                double original = x.getFlat(n);
+                x.putFlat(n, original + epsilon);
+                double plus = sum(activationLoss(function, new Variable(x.shape(), x), g).getValue());
+                x.putFlat(n, original - epsilon);
+                double minus = sum(activationLoss(function, new Variable(x.shape(), x), g).getValue());
+                x.putFlat(n, original);
+                assertEquals(function, (plus - minus) / 2 / epsilon, analytic.getFlat(n), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void testSoftmaxCrossEntropy() {
+        Batch z = Batch.rand(new int[]{2, 5, 1}).times(40); // large logits must not overflow
+        int[] gold = {3, 0};
+
+        Variable zv = new Variable(z.shape(), z);
+        double loss = new SoftmaxCrossEntropy(new int[]{1, 1, 1}, zv, gold).getValue().get(0, 0, 0);
+        Batch analytic = zv.getDualValue();
+
+        // against the log of an explicit softmax, averaged over the batch
+        Batch p = new Softmax(z.shape(), new Variable(z.shape(), z)).getValue();
+        assertEquals(-(Math.log(p.get(0, 3, 0)) + Math.log(p.get(1, 0, 0))) / 2, loss, 1e-9);
+
+        double epsilon = 0.0001;
+        for (int n = 0; n < z.length(); n++) {
+            double original = z.getFlat(n);
+            z.putFlat(n, original + epsilon);
+            double plus = new SoftmaxCrossEntropy(new int[]{1, 1, 1}, new Variable(z.shape(), z), gold).getValue().get(0, 0, 0);
+            z.putFlat(n, original - epsilon);
+            double minus = new SoftmaxCrossEntropy(new int[]{1, 1, 1}, new Variable(z.shape(), z), gold).getValue().get(0, 0, 0);
+            z.putFlat(n, original);
+            assertEquals((plus - minus) / 2 / epsilon, analytic.getFlat(n), 1e-6);
+        }
+    }
+
+    /**
+     * g * f(x), element-wise, so that the dual of x is the product of g and the Jacobian of f
+     */
+    private static Node activationLoss(String function, Variable x, Batch g) {
+        int[] shape = x.shape();
+        Node f;
+        if (function.equals("sigmoid")) {
+            f = new Sigmoid(shape, x);
+        } else if (function.equals("tanh")) {
+            f = new Tanh(shape, x);
+        } else if (function.equals("relu")) {
+            f = new ReLU(shape, x);
+        } else if (function.equals("exp")) {
+            f = new Exp(shape, x);
+        } else {
+            f = new Softmax(shape, x);
+        }
+        return new Mul(shape, f, new Variable(shape, g));
+    }
+
+    private static double sum(Batch batch) {
+        double sum = 0;
+        for (int n = 0; n < batch.length(); n++) {
+            sum += batch.getFlat(n);
+        }
+        return sum;
+    }
+
+    /**
+     * g^T (W a) or g^T (W^T a), a scalar
+     */
+    private static Node matmulLoss(Variable w, Variable a, Batch g, boolean transposed) {
+        Node b = new Matmul(new int[]{1, 4, 1}, w, a, transposed);
+        return new Matmul(new int[]{1, 1, 1}, new Variable(g.shape(), g), b, true);
+    }
 }
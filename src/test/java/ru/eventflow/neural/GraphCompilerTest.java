@@ -0,0 +1,158 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.graph.*;
+import ru.eventflow.neural.rnn.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * the plan against the node-by-node evaluation of the same encoder-decoder graph
+ */
+public class GraphCompilerTest {
+
+    private final List<String> tokens = Arrays.asList("a", "b", "c", Parameters.EOS);
+
+    @Test
+    public void testSameValuesAndGradients() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+        NetworkFactory factory = new NetworkFactory(parameters);
+
+        List<Placeholder> inputs = new ArrayList<>();
+        List<LSTM> encoder = new ArrayList<>();
+        for (String s : Arrays.asList("a", "b", "c")) {
+            Placeholder input = new Placeholder(new int[]{1, 3, 1});
+            input.setValue(parameters.embedding(s));
+            inputs.add(input);
+            encoder.add(encoder.isEmpty()
+                    ? factory.buildInitialEncoderCell(input)
+                    : factory.buildEncoderCell(encoder.get(encoder.size() - 1), input));
+        }
+        VanillaDecoder decoder = new VanillaDecoder(parameters, Arrays.asList("c", "b"));
+        decoder.decode(factory, encoder, false, true);
+
+        List<Node> losses = new ArrayList<>();
+        for (Node logits : decoder.getLogits()) {
+            losses.add(new SoftmaxCrossEntropy(new int[]{1, 1, 1}, logits, 2));
+        }
+        Node loss = losses.size() == 1 ? losses.get(0) : new Sum(new int[]{1, 1, 1}, losses);
+
+        GraphExecutor executor = new GraphExecutor(loss);
+        CompiledGraph plan = GraphCompiler.compile(loss);
+
+        assertAgree(executor, plan, parameters);
+        assertNull(plan.getGradient(inputs.get(0)));
+
+        // the same plan with new inputs
+        for (int i = 0; i < inputs.size(); i++) {
+            inputs.get(i).setValue(parameters.embedding(tokens.get(2 - i)));
+        }
+        executor.reset();
+        assertAgree(executor, plan, parameters);
+    }
+
+    /**
+     * one masked loss over all steps against a loss node per step, and the plan against both
+     */
+    @Test
+    public void testSequenceLoss() {
+        int[] shape = {2, 4, 1};
+        Variable w = new Variable(new int[]{1, 4, 4}, Batch.rand(new int[]{1, 4, 4}));
+        List<Node> logits = new ArrayList<>();
+        List<Node> losses = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            Placeholder x = new Placeholder(shape);
+            x.setValue(Batch.rand(shape));
+            logits.add(new Average(shape, new Matmul(shape, w, x), x));
+        }
+        SequenceLoss sequence = new SequenceLoss(new int[]{1, 1, 1}, logits);
+        for (int t = 0; t < 3; t++) {
+            SoftmaxCrossEntropy loss = new SoftmaxCrossEntropy(new int[]{1, 1, 1}, logits.get(t), t, 3 - t);
+            double[] weights = {0.5, t == 2 ? 0 : 1}; // the last step of the second entry is padding
+            loss.setWeights(weights);
+            sequence.setGold(t, t, 3 - t);
+            sequence.setWeights(t, weights);
+            losses.add(loss);
+        }
+
+        GraphExecutor executor = new GraphExecutor(new Sum(new int[]{1, 1, 1}, losses));
+        double expected = executor.forward().get(0, 0, 0);
+        executor.backward();
+        Batch expectedGradient = w.getDualValue().copy();
+
+        CompiledGraph plan = GraphCompiler.compile(sequence);
+        assertEquals(expected, plan.forward().get(0, 0, 0), 1e-12);
+        plan.backward();
+        for (int n = 0; n < expectedGradient.length(); n++) {
+            assertEquals(expectedGradient.getFlat(n), plan.getGradient(w).getFlat(n), 1e-12);
+        }
+    }
+
+    /**
+     * independent slots computed on a pool give the same loss and gradients as the sequential loop, a plan with
+     * checkpointed segments falls back to the loop
+     */
+    @Test
+    public void testLevelParallelForward() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+        List<String> source = Arrays.asList("a", "b", "c", "a", "b");
+        List<String> target = Arrays.asList("c", "b");
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int checkpointInterval : new int[]{0, 2}) {
+                GraphTemplate sequential = new GraphTemplate(parameters.copy(), source.size(), target.size(), checkpointInterval);
+                GraphTemplate parallel = new GraphTemplate(parameters.copy(), source.size(), target.size(), checkpointInterval);
+                parallel.setParallelForward(pool, 1);
+
+                for (int run = 0; run < 2; run++) {
+                    assertEquals(sequential.forwardBackward(source, target), parallel.forwardBackward(source, target), 0);
+                    for (Parameters.Type type : Parameters.Type.values()) {
+                        for (Variable variable : sequential.getParameters().getAll(type)) {
+                            Batch expected = sequential.getGradient(variable);
+                            if (expected == null) {
+                                continue;
+                            }
+                            Batch actual = parallel.getGradient(parallel.getParameters().get(type, variable.getName()));
+                            for (int n = 0; n < expected.length(); n++) {
+                                assertEquals(variable.getName(), expected.getFlat(n), actual.getFlat(n), 0);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedNode() {
+        Variable x = new Variable(new int[]{1, 2, 1});
+        GraphCompiler.compile(new Transpose(new int[]{1, 1, 2}, x));
+    }
+
+    private static void assertAgree(GraphExecutor executor, CompiledGraph plan, Parameters parameters) {
+        assertEquals(executor.forward().get(0, 0, 0), plan.forward().get(0, 0, 0), 1e-12);
+        executor.backward();
+        plan.backward();
+
+        for (Parameters.Type type : Parameters.Type.values()) {
+            for (Variable variable : parameters.getAll(type)) {
+                if (executor.getNodes().stream().noneMatch(node -> node == variable)) {
+                    continue;
+                }
+                Batch expected = variable.getDualValue();
+                Batch actual = plan.getGradient(variable);
+                for (int n = 0; n < expected.length(); n++) {
+                    assertEquals(variable.getName(), expected.getFlat(n), actual.getFlat(n), 1e-12);
+                }
+            }
+        }
+    }
+}
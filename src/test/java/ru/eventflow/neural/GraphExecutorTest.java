@@ -0,0 +1,219 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.graph.*;
+import ru.eventflow.neural.rnn.LSTM;
+import ru.eventflow.neural.rnn.NetworkFactory;
+import ru.eventflow.neural.rnn.Parameters;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class GraphExecutorTest {
+
+    /**
+     * far deeper than the recursive evaluation could go
+     */
+    @Test
+    public void testDeepChain() {
+        int[] shape = {1, 3, 1};
+        Variable x = new Variable(shape, Batch.ones(shape));
+
+        Node y = x;
+        int depth = 100000;
+        for (int i = 0; i < depth; i++) {
+            y = new Sum(shape, y, x);
+        }
+
+        GraphExecutor executor = new GraphExecutor(y);
+        assertEquals(depth + 1, executor.getNodes().size()); // x is shared
+
+        assertEquals(depth + 1, executor.forward().get(0, 1, 0), 0);
+        executor.backward();
+        assertEquals(depth + 1, x.getDualValue().get(0, 1, 0), 0);
+    }
+
+    /**
+     * shared nodes get all contributions once, a parent outside the graph contributes nothing
+     */
+    @Test
+    public void testSameGradientsAsRecursion() {
+        int[] shape = {1, 4, 1};
+        Batch a = Batch.rand(shape);
+        Batch b = Batch.rand(new int[]{1, 4, 4});
+
+        Variable x1 = new Variable(shape, a);
+        Variable w1 = new Variable(b.shape(), b);
+        Node loss1 = buildLoss(x1, w1);
+        loss1.getValue();
+
+        Variable x2 = new Variable(shape, a);
+        Variable w2 = new Variable(b.shape(), b);
+        Node loss2 = buildLoss(x2, w2);
+        new Exp(shape, x2); // dangling
+
+        GraphExecutor executor = new GraphExecutor(loss2);
+        assertEquals(loss1.getValue().get(0, 0, 0), executor.forward().get(0, 0, 0), 1e-12);
+        executor.backward();
+
+        for (int n = 0; n < a.length(); n++) {
+            assertEquals(x1.getDualValue().getFlat(n), x2.getDualValue().getFlat(n), 1e-12);
+        }
+        for (int n = 0; n < b.length(); n++) {
+            assertEquals(w1.getDualValue().getFlat(n), w2.getDualValue().getFlat(n), 1e-12);
+        }
+    }
+
+    /**
+     * leaves with equal shapes (structurally equal) must keep their own partials
+     */
+    @Test
+    public void testIdentity() {
+        int[] shape = {1, 2, 1};
+        Variable a = new Variable(shape, Batch.ones(shape));
+        Variable b = new Variable(shape, Batch.ones(shape).scaleInPlace(3));
+        Mul product = new Mul(shape, a, b);
+
+        GraphExecutor executor = new GraphExecutor(product);
+        executor.forward();
+        executor.backward();
+
+        assertEquals(3, a.getDualValue().get(0, 1, 0), 0);
+        assertEquals(1, b.getDualValue().get(0, 1, 0), 0);
+        assertEquals(3, executor.getNodes().size());
+        assertEquals(a.getId() + 1, b.getId());
+    }
+
+    /**
+     * the same values without partials, the backward pass is refused
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testPredict() {
+        int[] shape = {1, 4, 1};
+        Variable x = new Variable(shape, Batch.rand(shape));
+        Variable w = new Variable(new int[]{1, 4, 4}, Batch.rand(new int[]{1, 4, 4}));
+        Node loss = buildLoss(x, w);
+        GraphExecutor executor = new GraphExecutor(loss);
+
+        double expected = executor.forward().get(0, 0, 0);
+        executor.reset();
+        assertEquals(expected, executor.predict().get(0, 0, 0), 0);
+        for (Node node : executor.getNodes()) {
+            for (Batch partial : node.getPartials()) {
+                assertNull(node.toString(), partial);
+            }
+        }
+
+        executor.backward();
+    }
+
+    /**
+     * the gates evaluated concurrently give the same values and partials as evaluated one after another
+     */
+    @Test
+    public void testParallelForward() {
+        Parameters parameters = new Parameters(8, 32, Arrays.asList("a", "b", Parameters.EOS));
+        NetworkFactory factory = new NetworkFactory(parameters);
+        LSTM cell = null;
+        for (String token : Arrays.asList("a", "b", "b", "a")) {
+            Placeholder input = new Placeholder(new int[]{1, 8, 1});
+            input.setValue(parameters.embedding(token));
+            cell = cell == null ? factory.buildInitialEncoderCell(input) : factory.buildEncoderCell(cell, input);
+        }
+        Variable w = parameters.get(Parameters.Type.ENCODER, "W_i");
+        GraphExecutor executor = new GraphExecutor(cell.h);
+
+        Batch expected = executor.forward().copy();
+        executor.backward();
+        Batch expectedGradient = w.getDualValue().copy();
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            executor.reset();
+            Batch actual = executor.forward(pool, 0);
+            executor.backward();
+            for (int n = 0; n < expected.length(); n++) {
+                assertEquals(expected.getFlat(n), actual.getFlat(n), 0);
+            }
+            for (int n = 0; n < expectedGradient.length(); n++) {
+                assertEquals(expectedGradient.getFlat(n), w.getDualValue().getFlat(n), 0);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * a branch of constants gets neither partials nor dual values
+     */
+    @Test
+    public void testConstantBranch() {
+        int[] shape = {1, 2, 1};
+        Variable x = new Variable(shape, Batch.ones(shape));
+        Placeholder p = new Placeholder(shape);
+        p.setValue(Batch.ones(shape).scaleInPlace(2));
+        Node constant = new Tanh(shape, new Sum(shape, p, p));
+        Mul product = new Mul(shape, x, constant);
+
+        assertTrue(product.requiresGrad());
+        assertFalse(constant.requiresGrad());
+
+        GraphExecutor executor = new GraphExecutor(product);
+        executor.forward();
+        executor.backward();
+
+        assertEquals(Math.tanh(4), x.getDualValue().get(0, 1, 0), 1e-12);
+        assertNull(product.getPartials()[1]);
+        assertNull(constant.getPartials()[0]);
+    }
+
+    /**
+     * a child occurring twice gets the contributions of both positions, the same in the executor, the recursion
+     * and the compiled graph
+     */
+    @Test
+    public void testRepeatedChild() {
+        int[] shape = {1, 4, 1};
+        double[] expected = {4, 6}; // w[0] + w[2], w[1] + w[3]
+        for (int variant = 0; variant < 3; variant++) {
+            Variable x = new Variable(new int[]{1, 2, 1}, Batch.ones(new int[]{1, 2, 1}));
+            Batch weights = new Batch(shape);
+            for (int i = 0; i < 4; i++) {
+                weights.put(0, i, 0, i + 1);
+            }
+            Placeholder w = new Placeholder(shape);
+            w.setValue(weights);
+            Node product = new Mul(shape, new Concat(shape, x, x), w);
+
+            Batch dx;
+            if (variant == 0) {
+                GraphExecutor executor = new GraphExecutor(product);
+                executor.forward();
+                executor.backward();
+                dx = x.getDualValue();
+            } else if (variant == 1) {
+                product.getValue();
+                dx = x.getDualValue();
+            } else {
+                CompiledGraph plan = GraphCompiler.compile(product);
+                plan.forward();
+                plan.backward();
+                dx = plan.getGradient(x);
+            }
+            for (int i = 0; i < 2; i++) {
+                assertEquals("variant " + variant, expected[i], dx.get(0, i, 0), 0);
+            }
+        }
+    }
+
+    private static Node buildLoss(Variable x, Variable w) {
+        int[] shape = x.shape();
+        Node h = new Tanh(shape, new Matmul(shape, w, x));
+        Node g = new Sigmoid(shape, new Matmul(shape, w, h));
+        Placeholder y = new Placeholder(shape);
+        y.setValue(Batch.ones(shape));
+        return new MSELoss(new int[]{1, 1, 1}, y, new Mul(shape, new Sum(shape, g, h), x));
+    }
+}
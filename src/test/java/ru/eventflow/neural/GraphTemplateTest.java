@@ -0,0 +1,126 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.dataset.TrainingExample;
+import ru.eventflow.neural.graph.Variable;
+import ru.eventflow.neural.rnn.GraphTemplate;
+import ru.eventflow.neural.rnn.NetworkFactory;
+import ru.eventflow.neural.rnn.Parameters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class GraphTemplateTest {
+
+    private final List<String> tokens = Arrays.asList("a", "b", "c", Parameters.EOS);
+
+    /**
+     * a refilled template gives the same loss and gradients as a freshly built one
+     */
+    @Test
+    public void testReuse() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+
+        GraphTemplate reused = new GraphTemplate(parameters.copy(), 3, 1);
+        reused.forwardBackward(Arrays.asList("a", "b", "c"), Arrays.asList("a"));
+        double loss = reused.forwardBackward(Arrays.asList("c", "c", "b"), Arrays.asList("b"));
+
+        GraphTemplate fresh = new GraphTemplate(parameters.copy(), 3, 1);
+        assertEquals(fresh.forwardBackward(Arrays.asList("c", "c", "b"), Arrays.asList("b")), loss, 0);
+
+        assertSameGradients(fresh, reused);
+    }
+
+    /**
+     * recomputed segments give the same gradients as the fully kept encoder, whatever the interval
+     */
+    @Test
+    public void testCheckpointing() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+        List<String> source = Arrays.asList("a", "b", "c", "c", "a", "b", "a");
+        List<String> target = Arrays.asList("b", "a");
+
+        GraphTemplate kept = new GraphTemplate(parameters.copy(), source.size(), target.size());
+        double loss = kept.forwardBackward(source, target);
+
+        for (int interval : new int[]{1, 2, 3, 7, 10}) {
+            GraphTemplate checkpointed = new GraphTemplate(parameters.copy(), source.size(), target.size(), interval);
+            // the second run starts with the shared batches holding the last segment
+            checkpointed.forwardBackward(Arrays.asList("c", "c", "b", "a", "a", "b", "c"), Arrays.asList("a", "a"));
+            assertEquals(loss, checkpointed.forwardBackward(source, target), 0);
+            assertSameGradients(kept, checkpointed);
+        }
+    }
+
+    /**
+     * a padded minibatch gives the sums of the losses and gradients of its examples
+     */
+    @Test
+    public void testMinibatch() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+        List<TrainingExample> examples = Arrays.asList(
+                new TrainingExample(Arrays.asList("a", "b", "c", "a"), Arrays.asList("b")),
+                new TrainingExample(Arrays.asList("c"), Arrays.asList("a", "c")),
+                new TrainingExample(Arrays.asList("b", "b"), Arrays.asList("c", "a")));
+
+        double loss = 0;
+        List<GraphTemplate> singles = new ArrayList<>();
+        for (TrainingExample example : examples) {
+            GraphTemplate single = new GraphTemplate(parameters.copy(), example.getSource().size(), example.getTarget().size());
+            loss += single.forwardBackward(example.getSource(), example.getTarget());
+            singles.add(single);
+        }
+
+        for (int interval : new int[]{0, 2}) {
+            GraphTemplate minibatch = new GraphTemplate(new NetworkFactory(parameters.copy()), examples.size(), 4, 2, interval);
+            assertEquals(loss, minibatch.forwardBackward(examples), 1e-12);
+
+            for (int b = 0; b < examples.size(); b++) {
+                assertEquals(singles.get(b).getPredictions(), minibatch.getPredictions(b).subList(0, singles.get(b).getPredictions().size()));
+            }
+            for (Parameters.Type type : Parameters.Type.values()) {
+                for (Variable variable : minibatch.getParameters().getAll(type)) {
+                    Batch actual = minibatch.getGradient(variable);
+                    if (actual == null) {
+                        continue;
+                    }
+                    Batch expected = Batch.zeros(actual.shape());
+                    for (GraphTemplate single : singles) {
+                        Batch gradient = single.getGradient(single.getParameters().get(type, variable.getName()));
+                        if (gradient != null) {
+                            expected.addInPlace(gradient);
+                        }
+                    }
+                    for (int n = 0; n < expected.length(); n++) {
+                        assertEquals(variable.getName(), expected.getFlat(n), actual.getFlat(n), 1e-12);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertSameGradients(GraphTemplate expectedTemplate, GraphTemplate actualTemplate) {
+        for (Parameters.Type type : Parameters.Type.values()) {
+            for (Variable variable : expectedTemplate.getParameters().getAll(type)) {
+                Batch expected = expectedTemplate.getGradient(variable);
+                Batch actual = actualTemplate.getGradient(actualTemplate.getParameters().get(type, variable.getName()));
+                if (expected == null) {
+                    assertEquals(null, actual);
+                    continue;
+                }
+                for (int n = 0; n < expected.length(); n++) {
+                    assertEquals(variable.getName(), expected.getFlat(n), actual.getFlat(n), 0);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherLengths() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+        new GraphTemplate(parameters.copy(), 3, 1).forwardBackward(Arrays.asList("a", "b"), Arrays.asList("a"));
+    }
+}
@@ -0,0 +1,120 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.kernels.ElementWiseKernels;
+import ru.eventflow.neural.kernels.Kernels;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * the chosen (normally SIMD) kernels against the scalar ones, lengths cover the vector loop and the remainder
+ */
+public class KernelsTest {
+
+    private final ElementWiseKernels kernels = Kernels.elementWise();
+    private final ElementWiseKernels scalar = Kernels.scalar();
+    private final Random random = new Random(42);
+
+    @Test
+    public void testArithmetic() {
+        for (int length = 0; length < 40; length++) {
+            double[] a = random(length);
+            double[] b = random(length);
+
+            assertAgree(length, (k, y) -> k.add(a, b, y, y.length));
+            assertAgree(length, (k, y) -> k.mul(a, b, y, y.length));
+            assertAgree(length, (k, y) -> k.scale(-0.3, a, y, y.length));
+            assertAgree(length, (k, y) -> {
+                System.arraycopy(b, 0, y, 0, y.length);
+                k.axpy(2.5, a, y, y.length);
+            });
+        }
+    }
+
+    @Test
+    public void testActivations() {
+        for (int length = 0; length < 40; length++) {
+            double[] x = random(length);
+
+            assertAgree(length, (k, y) -> k.sigmoid(x, y, y.length));
+            assertAgree(length, (k, y) -> k.tanh(x, y, y.length));
+            assertAgree(length, (k, y) -> k.relu(x, y, y.length));
+            assertAgree(length, (k, y) -> k.exp(x, y, y.length));
+            assertAgree(length, (k, y) -> k.sigmoidDerivative(x, y, y.length));
+            assertAgree(length, (k, y) -> k.tanhDerivative(x, y, y.length));
+            assertAgree(length, (k, y) -> k.reluDerivative(x, y, y.length));
+        }
+    }
+
+    @Test
+    public void testSinglePrecision() {
+        for (int length = 0; length < 40; length++) {
+            float[] x = new float[length];
+            float[] z = new float[length];
+            for (int n = 0; n < length; n++) {
+                x[n] = (float) (10 * random.nextDouble() - 5);
+                z[n] = (float) random.nextDouble();
+            }
+
+            assertAgreeFloat(length, (k, y) -> k.add(x, z, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.mul(x, z, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.axpy(0.5f, x, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.sigmoid(x, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.tanh(x, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.relu(x, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.exp(x, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.sigmoidDerivative(z, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.tanhDerivative(z, y, y.length));
+            assertAgreeFloat(length, (k, y) -> k.reluDerivative(x, y, y.length));
+        }
+    }
+
+    @Test
+    public void testInPlace() {
+        double[] a = random(19);
+        double[] expected = new double[a.length];
+        scalar.tanh(a, expected, a.length);
+        kernels.tanh(a, a, a.length);
+        for (int n = 0; n < a.length; n++) {
+            assertEquals(expected[n], a[n], 1e-12);
+        }
+    }
+
+    private double[] random(int length) {
+        double[] array = new double[length];
+        for (int n = 0; n < length; n++) {
+            array[n] = 10 * random.nextDouble() - 5;
+        }
+        return array;
+    }
+
+    private void assertAgree(int length, Operation operation) {
+        double[] expected = new double[length];
+        double[] actual = new double[length];
+        operation.apply(scalar, expected);
+        operation.apply(kernels, actual);
+        for (int n = 0; n < length; n++) {
+            assertEquals(expected[n], actual[n], 1e-12);
+        }
+    }
+
+    private void assertAgreeFloat(int length, FloatOperation operation) {
+        float[] expected = new float[length];
+        float[] actual = new float[length];
+        operation.apply(scalar, expected);
+        operation.apply(kernels, actual);
+        for (int n = 0; n < length; n++) {
+            assertEquals(expected[n], actual[n], 1e-5 * Math.max(1, Math.abs(expected[n])));
+        }
+    }
+
+    private interface Operation {
+        void apply(ElementWiseKernels kernels, double[] out);
+    }
+
+    private interface FloatOperation {
+        void apply(ElementWiseKernels kernels, float[] out);
+    }
+}
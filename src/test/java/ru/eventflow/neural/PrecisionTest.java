@@ -0,0 +1,124 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import org.nustaq.serialization.FSTObjectOutput;
+import ru.eventflow.neural.graph.Matmul;
+import ru.eventflow.neural.graph.Node;
+import ru.eventflow.neural.graph.Sigmoid;
+import ru.eventflow.neural.graph.Variable;
+import ru.eventflow.neural.rnn.Parameters;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PrecisionTest {
+
+    @Test
+    public void testSinglePrecisionAgreesWithDouble() {
+        Batch a = Batch.rand(new int[]{2, 5, 3});
+        Batch b = Batch.rand(new int[]{2, 3, 4});
+        Batch c = Batch.rand(new int[]{2, 5, 3});
+
+        Batch fa = a.toPrecision(Precision.FLOAT);
+        Batch fb = b.toPrecision(Precision.FLOAT);
+        Batch fc = c.toPrecision(Precision.FLOAT);
+        assertEquals(Precision.FLOAT, fa.times(fb).getPrecision());
+
+        assertBatchEquals(a.times(b), fa.times(fb));
+        assertBatchEquals(a.transposeTimes(c), fa.transposeTimes(fc));
+        assertBatchEquals(a.plus(c).mul(c), fa.plus(fc).mul(fc));
+        assertBatchEquals(a.copy().axpy(-2, c).tanh(), fa.copy().axpy(-2, fc).tanh());
+        assertBatchEquals(a.transpose().clip(0.5), fa.transpose().clip(0.5));
+
+        // mixed operands follow the left one
+        assertEquals(Precision.DOUBLE, a.plus(fc).getPrecision());
+        assertBatchEquals(a.plus(c), fa.plus(c));
+    }
+
+    /**
+     * the in-place products do not convert behind the caller's back, the in-place sums convert a copy
+     */
+    @Test
+    public void testMixedPrecisionInPlace() {
+        Batch a = Batch.rand(new int[]{1, 5, 3});
+        Batch fb = Batch.rand(new int[]{1, 3, 4}).toPrecision(Precision.FLOAT);
+        try {
+            a.timesInto(false, fb, false, Batch.zeros(new int[]{1, 5, 4}), false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Precision mismatch"));
+        }
+        try {
+            a.timesInto(false, fb.toPrecision(Precision.DOUBLE), false, new Batch(new int[]{1, 5, 4}, Precision.FLOAT), false);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Precision mismatch"));
+        }
+
+        Batch c = Batch.rand(new int[]{1, 5, 3});
+        Batch sum = a.copy().addInPlace(c.toPrecision(Precision.FLOAT));
+        assertEquals(Precision.DOUBLE, sum.getPrecision());
+        assertBatchEquals(a.plus(c), sum);
+    }
+
+    @Test
+    public void testGraphFollowsThreadPrecision() {
+        Precision previous = Precision.set(Precision.FLOAT);
+        try {
+            Variable w = new Variable(new int[]{1, 4, 3}, Batch.xavier(new int[]{1, 4, 3}));
+            Variable x = new Variable(new int[]{1, 3, 1}, Batch.rand(new int[]{1, 3, 1}));
+            Node y = new Sigmoid(new int[]{1, 4, 1}, new Matmul(new int[]{1, 4, 1}, w, x));
+
+            assertEquals(Precision.FLOAT, y.getValue().getPrecision());
+            assertEquals(Precision.FLOAT, w.getDualValue().getPrecision());
+        } finally {
+            Precision.set(previous);
+        }
+        assertEquals(Precision.DOUBLE, Batch.zeros(new int[]{1, 1, 1}).getPrecision());
+    }
+
+    @Test
+    public void testSinglePrecisionSnapshotsAreSmaller() throws Exception {
+        List<String> tokens = Arrays.asList("a", "b", "c", Parameters.EOS);
+        byte[] doubles = write(new Parameters(16, 32, tokens, Precision.DOUBLE));
+        byte[] floats = write(new Parameters(16, 32, tokens, Precision.FLOAT));
+        assertTrue(floats.length < 0.6 * doubles.length);
+
+        Parameters restored = PersistenceUtils.read(new ByteArrayInputStream(floats));
+        assertEquals(Precision.FLOAT, restored.getPrecision());
+        assertEquals(Precision.FLOAT, restored.get(Parameters.Type.ENCODER, "U_f").getValue().getPrecision());
+        assertEquals(Precision.FLOAT, restored.embedding("b").getPrecision());
+    }
+
+    /**
+     * a stream without the format version, like the snapshots of Jama-backed batches, is refused
+     */
+    @Test(expected = IOException.class)
+    public void testUnversionedSnapshotIsRefused() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FSTObjectOutput fst = new FSTObjectOutput(out);
+        fst.writeObject(new Parameters(2, 3, Arrays.asList("a", Parameters.EOS)));
+        fst.close();
+        PersistenceUtils.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static byte[] write(Parameters parameters) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PersistenceUtils.write(out, parameters);
+        return out.toByteArray();
+    }
+
+    private static void assertBatchEquals(Batch expected, Batch actual) {
+        assertEquals(expected.length(), actual.length());
+        for (int n = 0; n < expected.length(); n++) {
+            assertEquals(expected.getFlat(n), actual.getFlat(n), 1e-5);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.graph.GraphExecutor;
+import ru.eventflow.neural.graph.Node;
+import ru.eventflow.neural.graph.Placeholder;
+import ru.eventflow.neural.rnn.LSTM;
+import ru.eventflow.neural.rnn.NetworkFactory;
+import ru.eventflow.neural.rnn.Parameters;
+import ru.eventflow.neural.rnn.VanillaDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class VanillaDecoderTest {
+
+    private final List<String> tokens = Arrays.asList("a", "b", "c", Parameters.EOS);
+
+    /**
+     * inference predicts the same tokens as a recorded pass, keeps no partials and prints nothing
+     */
+    @Test
+    public void testPredict() {
+        Parameters parameters = new Parameters(3, 4, tokens);
+        NetworkFactory factory = new NetworkFactory(parameters);
+
+        VanillaDecoder recorded = new VanillaDecoder(parameters, new ArrayList<>());
+        List<String> expected = new ArrayList<>();
+        for (Node y_hat : recorded.decode(factory, buildEncoder(parameters, factory), false, false)) {
+            expected.add(parameters.decode(y_hat.getValue()));
+        }
+        assertTrue(countPartials(recorded) > 0);
+
+        VanillaDecoder decoder = new VanillaDecoder(parameters, new ArrayList<>());
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        List<String> predicted;
+        try {
+            System.setOut(new PrintStream(printed));
+            predicted = decoder.predict(factory, buildEncoder(parameters, factory));
+        } finally {
+            System.setOut(out);
+        }
+
+        assertEquals(expected, predicted);
+        assertEquals(0, countPartials(decoder));
+        assertEquals(0, printed.size());
+    }
+
+    private static List<LSTM> buildEncoder(Parameters parameters, NetworkFactory factory) {
+        List<Placeholder> inputs = new ArrayList<>();
+        for (String token : Arrays.asList("a", "c", "b")) {
+            Placeholder input = new Placeholder(new int[]{1, 3, 1});
+            input.setValue(parameters.embedding(token));
+            inputs.add(input);
+        }
+        return factory.buildEncoder(inputs);
+    }
+
+    /**
+     * partials of all nodes the last decoded step depends on, the encoder included
+     */
+    private static int countPartials(VanillaDecoder decoder) {
+        List<Node> logits = decoder.getLogits();
+        int count = 0;
+        for (Node node : new GraphExecutor(logits.get(logits.size() - 1)).getNodes()) {
+            for (Batch partial : node.getPartials()) {
+                if (partial != null) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
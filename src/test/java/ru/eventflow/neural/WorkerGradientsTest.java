@@ -0,0 +1,114 @@
+package ru.eventflow.neural;
+
+import org.junit.Test;
+import ru.eventflow.neural.optimization.WorkerGradients;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class WorkerGradientsTest {
+
+    private static final int WORKERS = 5;
+    private final List<int[]> shapes = Arrays.asList(new int[]{1, 7, 3}, new int[]{1, 4, 1});
+
+    /**
+     * every graph goes to exactly one worker, the most costly ones spread first
+     */
+    @Test
+    public void testAssignment() {
+        long[] costs = {5, 9, 1, 9, 3, 3, 7, 2, 8, 1, 4, 6};
+        List<Integer> graphs = new ArrayList<>();
+        for (int g = 0; g < costs.length; g++) {
+            graphs.add(g);
+        }
+
+        List<List<Integer>> assignment = WorkerGradients.assign(graphs, WORKERS, g -> costs[g]);
+        assertEquals(assignment, WorkerGradients.assign(graphs, WORKERS, g -> costs[g]));
+
+        int[] seen = new int[costs.length];
+        for (List<Integer> assigned : assignment) {
+            for (int g : assigned) {
+                seen[g]++;
+            }
+        }
+        for (int count : seen) {
+            assertEquals(1, count);
+        }
+        // one of the five most costly each, then the rest to the least loaded (the first of equal ones)
+        assertEquals(Arrays.asList(1, 5), assignment.get(0));
+        assertEquals(Arrays.asList(3, 7, 2), assignment.get(1));
+        assertEquals(Arrays.asList(8, 4, 9), assignment.get(2));
+        assertEquals(Arrays.asList(6, 10), assignment.get(3));
+        assertEquals(Arrays.asList(11, 0), assignment.get(4));
+    }
+
+    /**
+     * the reduced buffers hold the sum over all graphs, bit for bit the same whatever the number of threads
+     */
+    @Test
+    public void testReductionIsDeterministic() throws Exception {
+        Random random = new Random(3);
+        List<Batch[]> graphs = new ArrayList<>();
+        for (int g = 0; g < 23; g++) {
+            Batch[] gradient = new Batch[shapes.size()];
+            for (int p = 0; p < gradient.length; p++) {
+                gradient[p] = new Batch(shapes.get(p));
+                for (int n = 0; n < gradient[p].length(); n++) {
+                    gradient[p].putFlat(n, random.nextGaussian() * Math.pow(10, random.nextInt(8)));
+                }
+            }
+            graphs.add(gradient);
+        }
+
+        Batch[] first = run(graphs, 2);
+        Batch[] second = run(graphs, 8);
+
+        for (int p = 0; p < shapes.size(); p++) {
+            for (int n = 0; n < first[p].length(); n++) {
+                double sum = 0;
+                for (Batch[] gradient : graphs) {
+                    sum += gradient[p].getFlat(n);
+                }
+                assertEquals(sum, first[p].getFlat(n), 1e-6 * Math.max(1, Math.abs(sum)));
+                assertEquals(Double.doubleToRawLongBits(first[p].getFlat(n)), Double.doubleToRawLongBits(second[p].getFlat(n)));
+            }
+        }
+    }
+
+    private Batch[] run(List<Batch[]> graphs, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            WorkerGradients buffers = new WorkerGradients(WORKERS, shapes, Precision.DOUBLE);
+            List<List<Batch[]>> assignment = WorkerGradients.assign(graphs, WORKERS, g -> (long) (g[0].getFlat(0) * 1e3));
+
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int worker = 0; worker < WORKERS; worker++) {
+                int w = worker;
+                tasks.add(() -> {
+                    buffers.clear(w);
+                    for (Batch[] gradient : assignment.get(w)) {
+                        for (int p = 0; p < gradient.length; p++) {
+                            buffers.get(w)[p].addInPlace(gradient[p]);
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            buffers.reduce(executor);
+            return buffers.get(0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}